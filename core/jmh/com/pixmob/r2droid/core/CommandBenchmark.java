@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark for command decoding: payloads are decoded as they are received
+ * in push messages, and commands are parsed before they are executed.
+ * @author Pixmob
+ */
+@State(Scope.Thread)
+public class CommandBenchmark {
+    private static final List<String> COMMANDS = Arrays.asList("ring",
+        "vibrate", "say Hello world", "say:fr-FR Bonjour tout le monde",
+        "locate", "status");
+    private final CommandCodec codec = new CommandCodec();
+    private String singlePayload;
+    private String compressedPayload;
+    
+    @Setup
+    public void setUp() {
+        singlePayload = CommandCodec.encode(Collections
+                .singletonList("say Hello world"));
+        // every command: the payload is compressed
+        compressedPayload = CommandCodec.encode(COMMANDS);
+    }
+    
+    @Benchmark
+    public void decodeSingle(Blackhole bh) {
+        decode(singlePayload, bh);
+    }
+    
+    @Benchmark
+    public void decodeCompressed(Blackhole bh) {
+        decode(compressedPayload, bh);
+    }
+    
+    @Benchmark
+    public void parse(Blackhole bh) {
+        for (int i = 0; i < COMMANDS.size(); ++i) {
+            bh.consume(Command.parse(COMMANDS.get(i)));
+        }
+    }
+    
+    private void decode(String payload, Blackhole bh) {
+        codec.reset(payload);
+        while (codec.hasNext()) {
+            bh.consume(codec.next());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+import java.util.Collections;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark for message dispatch: a push message is checked against the
+ * message window, and its payload is decoded to commands.
+ * @author Pixmob
+ */
+@State(Scope.Thread)
+public class DispatchBenchmark {
+    private final String[] seqs = new String[MessageWindow.SIZE];
+    private MessageDispatcher dispatcher;
+    private String payload;
+    private long nextSeq;
+    
+    @Setup
+    public void setUp() {
+        dispatcher = new MessageDispatcher(new MessageWindow());
+        payload = CommandCodec.encode(Collections.singletonList("ring"));
+        for (int i = 0; i < seqs.length; ++i) {
+            seqs[i] = String.valueOf(i);
+        }
+    }
+    
+    /**
+     * Dispatch a new message.
+     */
+    @Benchmark
+    public boolean dispatch(final Blackhole bh) {
+        return dispatcher.dispatch(String.valueOf(nextSeq++), null, payload,
+            null, new BlackholeSink(bh));
+    }
+    
+    /**
+     * Dispatch a message which was already received: it is dropped.
+     */
+    @Benchmark
+    public boolean dispatchDuplicate(final Blackhole bh) {
+        return dispatcher.dispatch(seqs[(int) (nextSeq++ % seqs.length)],
+            null, payload, null, new BlackholeSink(bh));
+    }
+    
+    /**
+     * Sink consuming dispatched commands.
+     * @author Pixmob
+     */
+    private static class BlackholeSink implements MessageDispatcher.Sink {
+        private final Blackhole bh;
+        
+        public BlackholeSink(final Blackhole bh) {
+            this.bh = bh;
+        }
+        
+        @Override
+        public void onSync() {
+        }
+        
+        @Override
+        public void onCommand(String command) {
+            bh.consume(command);
+        }
+        
+        @Override
+        public void onError(String message, Exception cause) {
+            throw new IllegalStateException(message, cause);
+        }
+    }
+}
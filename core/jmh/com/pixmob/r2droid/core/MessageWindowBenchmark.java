@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmark for the duplicate detection window.
+ * @author Pixmob
+ */
+@State(Scope.Thread)
+public class MessageWindowBenchmark {
+    private MessageWindow window;
+    private long nextSeq;
+    
+    @Setup
+    public void setUp() {
+        window = new MessageWindow();
+        for (int i = 0; i < MessageWindow.SIZE; ++i) {
+            window.accept(i);
+        }
+        nextSeq = MessageWindow.SIZE;
+    }
+    
+    /**
+     * Accept messages in order: the window slides by one.
+     */
+    @Benchmark
+    public boolean acceptInOrder() {
+        return window.accept(nextSeq++);
+    }
+    
+    /**
+     * Accept messages with gaps, as when messages are lost.
+     */
+    @Benchmark
+    public boolean acceptWithGaps() {
+        nextSeq += 17;
+        return window.accept(nextSeq);
+    }
+    
+    /**
+     * Check a message which was already seen.
+     */
+    @Benchmark
+    public boolean rejectDuplicate() {
+        return window.accept(window.getHighWaterMark() - 1);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmark for state snapshots stored in the application preferences: the
+ * message window, the heartbeat policy, and the device status delta.
+ * @author Pixmob
+ */
+@State(Scope.Thread)
+public class SnapshotBenchmark {
+    private MessageWindow window;
+    private String encodedWindow;
+    private HeartbeatPolicy heartbeat;
+    private String encodedHeartbeat;
+    private Map<String, String> baseStatus;
+    private Map<String, String> status;
+    
+    @Setup
+    public void setUp() {
+        window = new MessageWindow();
+        for (int i = 0; i < MessageWindow.SIZE * 2; i += 3) {
+            window.accept(i);
+        }
+        encodedWindow = window.encode();
+        
+        heartbeat = new HeartbeatPolicy();
+        heartbeat.onSuccess(heartbeat.getInterval());
+        encodedHeartbeat = heartbeat.encode();
+        
+        baseStatus = new HashMap<String, String>(8);
+        baseStatus.put("bat", "87");
+        baseStatus.put("plg", "ac");
+        baseStatus.put("net", "wifi");
+        baseStatus.put("sig", "3");
+        baseStatus.put("sto", "1024");
+        baseStatus.put("rng", "normal");
+        status = new HashMap<String, String>(baseStatus);
+        status.put("bat", "86");
+        status.remove("plg");
+    }
+    
+    @Benchmark
+    public String encodeWindow() {
+        return window.encode();
+    }
+    
+    @Benchmark
+    public MessageWindow decodeWindow() {
+        return MessageWindow.decode(encodedWindow);
+    }
+    
+    @Benchmark
+    public String encodeHeartbeat() {
+        return heartbeat.encode();
+    }
+    
+    @Benchmark
+    public HeartbeatPolicy decodeHeartbeat() {
+        return HeartbeatPolicy.decode(encodedHeartbeat);
+    }
+    
+    @Benchmark
+    public Map<String, String> diffStatus() {
+        return StateDelta.diff(baseStatus, status);
+    }
+}
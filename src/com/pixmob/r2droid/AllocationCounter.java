@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.DEV;
+import static com.pixmob.r2droid.Constants.TAG;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Object allocation counter for the push-to-execute path, in development
+ * builds. Allocations are counted for the current thread, and the count is
+ * logged for each handled message. Allocation budgets for the decoding path
+ * are checked on a JVM by the <code>test</code> target of
+ * <code>core/build.xml</code>: see <code>tools/AllocationCheck.java</code>.
+ * @author Pixmob
+ */
+final class AllocationCounter {
+    private static int users;
+    
+    private AllocationCounter() {
+    }
+    
+    /**
+     * Start counting allocations in the current thread.
+     */
+    public static void start() {
+        if (!DEV) {
+            return;
+        }
+        // allocation counting is enabled for the whole process
+        synchronized (AllocationCounter.class) {
+            if (users++ == 0) {
+                Debug.startAllocCounting();
+            }
+        }
+        Debug.resetThreadAllocCount();
+    }
+    
+    /**
+     * Get the number of objects allocated by the current thread since
+     * counting was started.
+     */
+    public static int get() {
+        return DEV ? Debug.getThreadAllocCount() : 0;
+    }
+    
+    /**
+     * Stop counting allocations in the current thread, and log the count.
+     * @param path counted path, for logging
+     * @param count number of allocated objects
+     */
+    public static void stop(String path, int count) {
+        if (!DEV) {
+            return;
+        }
+        synchronized (AllocationCounter.class) {
+            if (--users == 0) {
+                Debug.stopAllocCounting();
+            }
+        }
+        log(path, count);
+    }
+    
+    /**
+     * Log an allocation count, for a part of a counted path.
+     * @param path counted path, for logging
+     * @param count number of allocated objects
+     */
+    public static void log(String path, int count) {
+        if (DEV) {
+            Log.v(TAG, "Allocations for " + path + ": " + count + " objects");
+        }
+    }
+}
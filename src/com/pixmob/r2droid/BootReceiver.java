@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Receiver for the boot event. Alarms are lost when the device is rebooted:
+ * deferred network work and registration checks are scheduled again. The
+ * local command server is started if it is enabled.
+ * @author Pixmob
+ */
+public class BootReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        NetworkScheduler.setDeadlineAlarm(context);
+        if (Preferences.isOnline(context)) {
+            Reconciler.ensureStarted(context);
+        }
+        if (Preferences.isLocalServerEnabled(context)) {
+            context.startService(new Intent(context,
+                    LocalCommandService.class));
+        }
+    }
+}
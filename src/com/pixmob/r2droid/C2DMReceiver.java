@@ -26,6 +26,7 @@ import com.google.android.c2dm.C2DMBaseReceiver;
 
 /**
  * C2DM receiver. This class receives events from the C2DM handler.
+ * Messages are handed to {@link PushDispatcher}.
  * @author Pixmob
  */
 public class C2DMReceiver extends C2DMBaseReceiver {
@@ -35,7 +36,7 @@ public class C2DMReceiver extends C2DMBaseReceiver {
     
     @Override
     public void onError(Context context, String errorId) {
-        final Intent intent = new Intent(
+        final Intent intent = DeviceRegistrationService.newIntent(context,
                 DeviceRegistrationService.ACTION_C2DM_ERROR);
         intent.putExtra(DeviceRegistrationService.KEY_ERROR, errorId);
         startService(intent);
@@ -43,26 +44,22 @@ public class C2DMReceiver extends C2DMBaseReceiver {
     
     @Override
     protected void onMessage(Context context, Intent intent) {
-        final String command = intent.getStringExtra("command");
-        if (command != null) {
-            final Intent commandIntent = new Intent(
-                    CommandExecutorService.ACTION_EXECUTE);
-            commandIntent.putExtra(CommandExecutorService.KEY_COMMAND, command);
-            startService(commandIntent);
-        }
+        PushDispatcher.get(this).dispatch(intent.getStringExtra("seq"),
+            intent.getStringExtra("type"), intent.getStringExtra("c"),
+            intent.getStringExtra("command"));
     }
     
     @Override
     public void onRegistrered(Context context, String registrationId)
             throws IOException {
         Preferences.setRegistrationId(getApplicationContext(), registrationId);
-        startService(new Intent(
+        startService(DeviceRegistrationService.newIntent(context,
                 DeviceRegistrationService.ACTION_C2DM_REGISTERED));
     }
     
     @Override
     public void onUnregistered(Context context) {
-        startService(new Intent(
+        startService(DeviceRegistrationService.newIntent(context,
                 DeviceRegistrationService.ACTION_C2DM_UNREGISTERED));
     }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.C2DM_SENDER_ID;
+
+import android.content.Context;
+
+import com.google.android.c2dm.C2DMessaging;
+
+/**
+ * Push transport using Google C2DM. Messages are received by
+ * {@link C2DMReceiver}.
+ * @author Pixmob
+ */
+class C2DMTransport implements PushTransport {
+    @Override
+    public boolean register(Context context) {
+        return C2DMessaging.register(context, C2DM_SENDER_ID);
+    }
+    
+    @Override
+    public boolean unregister(Context context) {
+        return C2DMessaging.unregister(context);
+    }
+    
+    @Override
+    public void resume(Context context) {
+        // messages are delivered by the system
+    }
+    
+    @Override
+    public String getRegistrationId(Context context) {
+        final String regId = C2DMessaging.getRegistrationId(context);
+        return regId.length() == 0 ? null : regId;
+    }
+}
@@ -15,120 +15,233 @@
  */
 package com.pixmob.r2droid;
 
+import static com.pixmob.r2droid.Commands.locate;
 import static com.pixmob.r2droid.Commands.ring;
 import static com.pixmob.r2droid.Commands.say;
 import static com.pixmob.r2droid.Commands.vibrate;
 import static com.pixmob.r2droid.Constants.DEV;
 import static com.pixmob.r2droid.Constants.TAG;
-import android.app.Notification;
-import android.app.PendingIntent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.app.Service;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
 import com.pixmob.actionservice.ActionExecutionFailedException;
-import com.pixmob.actionservice.ActionService;
+import com.pixmob.r2droid.core.CancellationToken;
+import com.pixmob.r2droid.core.Command;
 
 /**
- * Command executor service.
+ * Command executor service. This service runs in a separate process, which
+ * only holds what command execution needs: the connection to the central
+ * host and the device state are kept in the main process.
+ * <p>
+ * The service is bound by the main process while commands are queued (see
+ * {@link ExecutorConnection}): commands are submitted with a
+ * {@link Messenger}, and they are executed in a worker thread in the order
+ * they are submitted. Command results are sent to {@link ResultService} in
+ * the main process, which is bound while commands are queued.
+ * </p>
  * @author Pixmob
  */
-public class CommandExecutorService extends ActionService {
-    public static final String ACTION_EXECUTE = "com.pixmob.r2droid.intent.action.EXECUTE_COMMAND";
+public class CommandExecutorService extends Service {
+    /**
+     * Message for executing a command: the command is stored in the message
+     * data, with the key {@link #KEY_COMMAND}.
+     */
+    public static final int MSG_EXECUTE = 1;
+    /**
+     * Message for cancelling the command being executed.
+     */
+    public static final int MSG_CANCEL = 2;
     public static final String KEY_COMMAND = "command";
-    private static final String ACTION_CANCEL = "com.pixmob.r2droid.intent.action.CANCEL_COMMAND";
-    private static final int STATUS_COMMAND_EXECUTION = 3;
+    private final AtomicInteger pendingCommands = new AtomicInteger();
+    private final ResultConnection results = new ResultConnection();
+    private HandlerThread worker;
+    private Handler workerHandler;
+    private Messenger messenger;
     private Handler uiHandler;
-    private PendingIntent cancelCommandIntent;
+    private volatile CancellationToken cancellationToken;
     
-    public CommandExecutorService() {
-        super("R2droid Command Executor");
+    /**
+     * Queue a command for execution. Commands are executed in the order they
+     * are queued. This method is called from the main process.
+     */
+    public static void execute(Context context, String command) {
+        ExecutorConnection.get(context).submit(command);
     }
     
     @Override
     public void onCreate() {
         super.onCreate();
-        
-        cancelCommandIntent = PendingIntent.getService(this, 0, new Intent(
-                ACTION_CANCEL), 0);
+        StartupTimer.onServiceCreated(this);
         
         uiHandler = new UIHandler(this);
+        worker = new HandlerThread("R2droid Command Executor");
+        worker.start();
+        workerHandler = new WorkerHandler(worker.getLooper());
+        messenger = new Messenger(new RequestHandler());
     }
     
     @Override
     public void onDestroy() {
         super.onDestroy();
+        // the main process unbinds this service when every command returned
+        // its result, or when it dies: a running command is cancelled
+        cancel();
+        worker.getLooper().quit();
+        worker.interrupt();
+        worker = null;
+        workerHandler = null;
+        messenger = null;
+        MemoryStats.log("idle");
         uiHandler = null;
-        cancelCommandIntent = null;
+        pendingCommands.set(0);
+        results.unbind();
     }
     
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return messenger.getBinder();
     }
     
-    @Override
-    protected boolean isActionCancelled(Intent intent) {
-        return ACTION_CANCEL.equals(intent.getAction());
+    private void cancel() {
+        // the device is stopped by the command listeners, without waiting
+        // for the worker thread
+        final CancellationToken token = cancellationToken;
+        if (token != null) {
+            try {
+                token.cancel();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Cancellation listener failed", e);
+            }
+            if (DEV) {
+                Log.i(TAG, "Cancellation listeners ran in "
+                        + token.getElapsedSinceCancel() + " ms");
+            }
+        }
     }
     
-    @Override
-    protected void handleAction(Intent intent)
+    private void executeCommand(String command) {
+        try {
+            handleCommand(command);
+        } catch (InterruptedException e) {
+            if (DEV) {
+                Log.i(TAG, "Command interrupted: " + command);
+            }
+        } catch (ActionExecutionFailedException e) {
+            onCommandError(command, e);
+        }
+    }
+    
+    private void handleCommand(String command)
             throws ActionExecutionFailedException, InterruptedException {
-        final String command = intent.getStringExtra(KEY_COMMAND);
         if (DEV) {
             Log.i(TAG, "Executing command: " + command);
         }
-        final String msg = String.format(getString(R.string.executing_command),
-            command);
-        final Notification notification = new Notification(
-                R.drawable.ic_stat_icon, msg, System.currentTimeMillis());
-        notification.setLatestEventInfo(this, msg,
-            getString(R.string.tap_to_cancel_command), cancelCommandIntent);
-        startForeground(STATUS_COMMAND_EXECUTION, notification);
+        AllocationCounter.start();
+        // allocations made by the command itself are not counted
+        int beforeDispatch = -1;
+        // the notification is displayed by the main process, with the
+        // commands queued after this one
+        results.commandStarted(command, Math.max(0, pendingCommands
+                .decrementAndGet()));
         
+        final CancellationToken token = new CancellationToken();
+        cancellationToken = token;
+        final long startTime = System.currentTimeMillis();
+        final long startClock = SystemClock.elapsedRealtime();
+        String status = CommandResults.STATUS_FAILED;
+        String error = null;
         try {
-            if ("ring".equals(command)) {
-                ring(this);
-            } else if ("vibrate".equals(command)) {
-                vibrate(this);
-            } else if (command.startsWith("say ")) {
-                final String text = command.substring("say ".length());
-                if (text.length() > 0) {
-                    say(this, text);
-                }
+            final Command cmd = Command.parse(command);
+            beforeDispatch = AllocationCounter.get();
+            switch (cmd.getType()) {
+                case Command.RING:
+                    ring(this, token);
+                    break;
+                case Command.VIBRATE:
+                    vibrate(this, token);
+                    break;
+                case Command.SAY:
+                    final Locale locale = cmd.getLanguage() == null ? null
+                            : SpeechEngine.parseLocale(cmd.getLanguage());
+                    say(this, cmd.getText(), locale, token);
+                    break;
+                case Command.LOCATE:
+                    locate(this, token);
+                    break;
+                case Command.STATUS:
+                    DeviceRegistrationService.uploadStatus(this);
+                    break;
+                default:
+                    if (DEV) {
+                        Log.w(TAG, "Unsupported command: " + command);
+                    }
+                    // the command is reported as failed, without notifying
+                    // the user
+                    error = "Unsupported command";
+                    return;
             }
+            status = CommandResults.STATUS_OK;
         } catch (ActionExecutionFailedException e) {
+            error = e.getMessage();
             throw e;
         } catch (InterruptedException e) {
+            status = CommandResults.STATUS_CANCELLED;
             throw e;
         } catch (Exception e) {
+            error = e.toString();
             throw new ActionExecutionFailedException(
                     "Command execution failed: " + command, e);
         } finally {
+            final int afterDispatch = AllocationCounter.get();
+            cancellationToken = null;
+            final long duration = SystemClock.elapsedRealtime() - startClock;
+            results.send(CommandResults.encode(command, status, startTime,
+                duration, error));
+            results.unbindIfIdle();
             if (DEV) {
-                Log.i(TAG, "Command finished: " + command);
+                if (token.isCancelled()) {
+                    Log.i(TAG, "Command cancelled: " + command
+                            + " (finished " + token.getElapsedSinceCancel()
+                            + " ms after cancellation)");
+                } else {
+                    Log.i(TAG, "Command finished: " + command);
+                }
             }
-            stopForeground(true);
+            // the command is not dispatched if it cannot be parsed
+            final int setup = beforeDispatch == -1 ? afterDispatch
+                    : beforeDispatch;
+            final int completion = AllocationCounter.get() - afterDispatch;
+            AllocationCounter.log("command setup", setup);
+            AllocationCounter.stop("command completion", completion);
         }
     }
     
-    @Override
-    protected void onActionError(Intent intent, Exception e) {
-        final String command = intent.getStringExtra(KEY_COMMAND);
+    private void onCommandError(String command, Exception e) {
         if (DEV) {
             Log.w(TAG, "Command execution failed: " + command, e);
         }
         if (uiHandler != null) {
-            final Message m = new Message();
-            m.what = UIHandler.ERROR;
-            m.obj = String.format(getString(R.string.command_execution_failed),
-                command);
-            uiHandler.sendMessage(m);
+            // the error message is only formatted when it is displayed
+            uiHandler.obtainMessage(UIHandler.ERROR, command).sendToTarget();
         } else {
             if (DEV) {
                 Log.w(TAG, "No UIHandler: cannot error for command " + command);
@@ -136,6 +249,153 @@ public class CommandExecutorService extends ActionService {
         }
     }
     
+    /**
+     * Connection to {@link ResultService}. Messages are kept until the
+     * service is connected: the service is unbound when the command queue is
+     * empty and every message is sent.
+     * @author Pixmob
+     */
+    private class ResultConnection implements ServiceConnection {
+        private final List<Message> pendingMessages = new ArrayList<Message>(4);
+        private Messenger messenger;
+        private boolean bound;
+        
+        public synchronized void bind() {
+            if (!bound) {
+                bound = bindService(new Intent(CommandExecutorService.this,
+                        ResultService.class), this, BIND_AUTO_CREATE);
+                if (!bound) {
+                    Log.w(TAG, "Cannot bind to result service");
+                }
+            }
+        }
+        
+        /**
+         * Notify that a command is started. The main process displays the
+         * command in its notification.
+         * @param queueDepth number of commands queued after this one
+         */
+        public synchronized void commandStarted(String command,
+                int queueDepth) {
+            final Message msg = Message.obtain(null,
+                ResultService.MSG_COMMAND_STARTED, queueDepth, 0);
+            msg.getData().putString(KEY_COMMAND, command);
+            pendingMessages.add(msg);
+            flush();
+        }
+        
+        /**
+         * Send the result of the started command. A <code>null</code> result
+         * is sent if the result cannot be encoded: the main process is
+         * notified that the command is finished.
+         */
+        public synchronized void send(String result) {
+            final Message msg = Message.obtain(null,
+                ResultService.MSG_ADD_RESULT);
+            msg.getData().putString(ResultService.KEY_RESULT, result);
+            pendingMessages.add(msg);
+            flush();
+        }
+        
+        /**
+         * Unbind from the service if no command is queued, and if every
+         * message was sent.
+         */
+        public synchronized void unbindIfIdle() {
+            if (pendingCommands.get() == 0 && pendingMessages.isEmpty()) {
+                unbind();
+            }
+        }
+        
+        public synchronized void unbind() {
+            if (bound) {
+                // the service was not connected before this service was
+                // destroyed: results are sent with intents, while the
+                // notification is updated when the connection is dropped
+                for (final Message msg : pendingMessages) {
+                    if (msg.what == ResultService.MSG_ADD_RESULT) {
+                        ResultService.addResult(CommandExecutorService.this,
+                            msg.getData().getString(ResultService.KEY_RESULT));
+                    }
+                    msg.recycle();
+                }
+                pendingMessages.clear();
+                unbindService(this);
+                bound = false;
+                messenger = null;
+            }
+        }
+        
+        @Override
+        public synchronized void onServiceConnected(ComponentName name,
+                IBinder service) {
+            messenger = new Messenger(service);
+            flush();
+            unbindIfIdle();
+        }
+        
+        @Override
+        public synchronized void onServiceDisconnected(ComponentName name) {
+            // the main process died: messages are sent when the service is
+            // connected again
+            messenger = null;
+        }
+        
+        private void flush() {
+            while (messenger != null && !pendingMessages.isEmpty()) {
+                try {
+                    messenger.send(pendingMessages.get(0));
+                    pendingMessages.remove(0);
+                } catch (RemoteException e) {
+                    if (DEV) {
+                        Log.w(TAG, "Failed to send message to main process", e);
+                    }
+                    messenger = null;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Handler for requests from the main process. Requests are handled in the
+     * main thread: a cancellation is not queued after running commands.
+     * @author Pixmob
+     */
+    private class RequestHandler extends Handler {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_EXECUTE) {
+                pendingCommands.incrementAndGet();
+                results.bind();
+                workerHandler.obtainMessage(MSG_EXECUTE,
+                    msg.getData().getString(KEY_COMMAND)).sendToTarget();
+            } else if (msg.what == MSG_CANCEL) {
+                cancel();
+            } else {
+                super.handleMessage(msg);
+            }
+        }
+    }
+    
+    /**
+     * Handler for the worker thread, which executes commands.
+     * @author Pixmob
+     */
+    private class WorkerHandler extends Handler {
+        public WorkerHandler(final Looper looper) {
+            super(looper);
+        }
+        
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_EXECUTE) {
+                executeCommand((String) msg.obj);
+            } else {
+                super.handleMessage(msg);
+            }
+        }
+    }
+    
     private static class UIHandler extends Handler {
         public static final int ERROR = 1;
         private final Context context;
@@ -147,8 +407,9 @@ public class CommandExecutorService extends ActionService {
         @Override
         public void handleMessage(Message msg) {
             if (msg.what == ERROR) {
-                Toast.makeText(context, (String) msg.obj, Toast.LENGTH_LONG)
-                        .show();
+                Toast.makeText(context, context.getString(
+                    R.string.command_execution_failed, msg.obj),
+                    Toast.LENGTH_LONG).show();
             }
             super.handleMessage(msg);
         }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.DEV;
+import static com.pixmob.r2droid.Constants.TAG;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Buffer for command execution results. Results are stored in a file, and
+ * they are uploaded to the central host as a single compressed request when
+ * the buffer is flushed. The buffer is owned by the main process: results are
+ * encoded in the command execution process, and sent to {@link ResultService}.
+ * @author Pixmob
+ */
+final class CommandResults {
+    public static final String STATUS_OK = "ok";
+    public static final String STATUS_FAILED = "failed";
+    public static final String STATUS_CANCELLED = "cancelled";
+    private static final String BUFFER_FILE = "results";
+    private static final String PENDING_FILE = "results.pending";
+    private static final long MAX_BUFFER_SIZE = 256 * 1024;
+    private static final long MAX_FLUSH_DELAY = 30 * 60 * 1000;
+    private static final Object LOCK = new Object();
+    
+    private CommandResults() {
+    }
+    
+    /**
+     * Encode a command result, before it is sent to the main process.
+     * @param command executed command
+     * @param status command status (see <code>STATUS_*</code> constants)
+     * @param startTime command start time (wall clock)
+     * @param duration command duration in milliseconds
+     * @param error error message, may be <code>null</code>
+     * @return JSON encoded result, or <code>null</code> if the result cannot be
+     *         encoded
+     */
+    public static String encode(String command, String status,
+            long startTime, long duration, String error) {
+        final JSONObject result = new JSONObject();
+        try {
+            result.put("command", command);
+            result.put("status", status);
+            result.put("start", startTime);
+            result.put("duration", duration);
+            if (error != null) {
+                result.put("error", error);
+            }
+        } catch (JSONException e) {
+            Log.wtf(TAG, "Failed to encode command result", e);
+            return null;
+        }
+        return result.toString();
+    }
+    
+    /**
+     * Store a command result in the buffer, and schedule a flush. This method
+     * is called from the main process, by {@link ResultService}.
+     * @param result JSON encoded result
+     */
+    static void store(Context context, String result) {
+        if (result == null) {
+            return;
+        }
+        synchronized (LOCK) {
+            final File bufferFile = context.getFileStreamPath(BUFFER_FILE);
+            if (bufferFile.length() > MAX_BUFFER_SIZE) {
+                Log.w(TAG, "Command result buffer is full: "
+                        + "dropping result " + result);
+                return;
+            }
+            try {
+                final Writer out = new OutputStreamWriter(context
+                        .openFileOutput(BUFFER_FILE, Context.MODE_APPEND
+                                | Context.MODE_PRIVATE), "UTF-8");
+                try {
+                    out.write(result);
+                    out.write('\n');
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to store command result", e);
+                return;
+            }
+        }
+        if (DEV) {
+            Log.d(TAG, "Command result buffered: " + result);
+        }
+        
+        scheduleFlush(context);
+    }
+    
+    /**
+     * Schedule a buffer flush. The buffer is sent when the network is cheap
+     * to use, or when the maximum flush delay is reached.
+     */
+    public static void scheduleFlush(Context context) {
+        NetworkScheduler.schedule(context,
+            DeviceRegistrationService.ACTION_UPLOAD_RESULTS, MAX_FLUSH_DELAY);
+    }
+    
+    /**
+     * Upload buffered results.
+     * @return <code>true</code> if there is no more result to upload
+     */
+    public static boolean send(Context context, DeviceApi api) {
+        try {
+            final byte[] results = prepare(context);
+            if (results == null) {
+                return true;
+            }
+            final ByteArrayEntity entity = new ByteArrayEntity(results);
+            entity.setContentType("application/json");
+            entity.setContentEncoding("gzip");
+            final int statusCode = api.post("results", entity);
+            if (statusCode == DeviceApi.HTTP_SC_OK) {
+                commit(context);
+                return true;
+            }
+            if (DeviceApi.isRejected(statusCode)) {
+                Log.w(TAG, "Command results rejected by the central host: "
+                        + "statusCode=" + statusCode);
+                commit(context);
+                return true;
+            }
+            if (DEV) {
+                Log.w(TAG, "Failed to upload command results: statusCode="
+                        + statusCode);
+            }
+        } catch (Exception e) {
+            DeviceApi.logError(e);
+        }
+        return false;
+    }
+    
+    /**
+     * Get buffered results, as a gzip-compressed JSON array. Results are
+     * moved to a pending file: they are removed with {@link #commit(Context)}
+     * once they are uploaded.
+     * @return compressed results, or <code>null</code> if there is no result
+     *         to upload
+     */
+    public static byte[] prepare(Context context) throws IOException {
+        synchronized (LOCK) {
+            final File bufferFile = context.getFileStreamPath(BUFFER_FILE);
+            final File pendingFile = context.getFileStreamPath(PENDING_FILE);
+            if (bufferFile.length() != 0) {
+                if (pendingFile.exists()) {
+                    // a previous upload failed: merge results
+                    append(bufferFile, pendingFile);
+                    bufferFile.delete();
+                } else if (!bufferFile.renameTo(pendingFile)) {
+                    throw new IOException("Failed to rename " + bufferFile);
+                }
+            }
+            if (pendingFile.length() == 0) {
+                return null;
+            }
+            
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream(
+                    (int) pendingFile.length() / 4);
+            final Writer out = new OutputStreamWriter(new GZIPOutputStream(
+                    buf), "UTF-8");
+            final BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(pendingFile), "UTF-8"), 1024);
+            try {
+                out.write('[');
+                boolean first = true;
+                for (String line; (line = in.readLine()) != null;) {
+                    if (line.length() != 0) {
+                        if (!first) {
+                            out.write(',');
+                        }
+                        out.write(line);
+                        first = false;
+                    }
+                }
+                out.write(']');
+            } finally {
+                in.close();
+                out.close();
+            }
+            return buf.toByteArray();
+        }
+    }
+    
+    /**
+     * Remove results returned by the last call to {@link #prepare(Context)},
+     * once they are uploaded or rejected.
+     */
+    public static void commit(Context context) {
+        synchronized (LOCK) {
+            context.getFileStreamPath(PENDING_FILE).delete();
+        }
+    }
+    
+    private static void append(File src, File dst) throws IOException {
+        final FileInputStream in = new FileInputStream(src);
+        try {
+            final OutputStream out = new FileOutputStream(dst, true);
+            try {
+                final byte[] buf = new byte[1024];
+                for (int bytesRead; (bytesRead = in.read(buf)) != -1;) {
+                    out.write(buf, 0, bytesRead);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -18,24 +18,43 @@ package com.pixmob.r2droid;
 import static com.pixmob.r2droid.Constants.DEV;
 import static com.pixmob.r2droid.Constants.TAG;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import android.content.Context;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.RingtoneManager;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.os.Vibrator;
 import android.speech.tts.TextToSpeech;
-import android.speech.tts.TextToSpeech.OnInitListener;
 import android.speech.tts.TextToSpeech.OnUtteranceCompletedListener;
 import android.util.Log;
 
 import com.pixmob.actionservice.ActionExecutionFailedException;
+import com.pixmob.r2droid.core.CancellationToken;
+import com.pixmob.r2droid.core.Outputs;
+import com.pixmob.r2droid.core.Outputs.Output;
+import com.pixmob.r2droid.core.Outputs.Speaker;
+import com.pixmob.r2droid.core.SpeechChunker;
+import com.pixmob.r2droid.core.UtteranceBarrier;
 
 /**
  * Implementation for supported commands.
@@ -43,6 +62,17 @@ import com.pixmob.actionservice.ActionExecutionFailedException;
  */
 final class Commands {
     private static final long[] VIBRATOR_PATTERN = { 0, 500, 300 };
+    private static final long VIBRATE_DURATION = 10 * 1000;
+    private static final long SYNTHESIS_TIMEOUT = 30 * 1000;
+    private static final int MAX_CACHED_TEXT_LENGTH = 2 * SpeechChunker.MAX_CHUNK_LENGTH;
+    private static final int MAX_QUEUED_CHUNKS = 2;
+    private static final long LOCATE_TIMEOUT = 60 * 1000;
+    private static final long LOCATE_BATCH_INTERVAL = 5 * 1000;
+    private static final float LOCATE_TARGET_ACCURACY = 30;
+    /**
+     * A location older than this value is replaced by any newer location.
+     */
+    private static final long MAX_LOCATION_AGE = 2 * 60 * 1000;
     
     private Commands() {
     }
@@ -50,7 +80,7 @@ final class Commands {
     /**
      * Make the device ring.
      */
-    public static void ring(Context context)
+    public static void ring(Context context, CancellationToken token)
             throws ActionExecutionFailedException, InterruptedException {
         final Uri ringtoneUri = RingtoneManager.getActualDefaultRingtoneUri(
             context, RingtoneManager.TYPE_RINGTONE);
@@ -69,98 +99,422 @@ final class Commands {
                     "Failed to prepare MediaPlayer for " + ringtoneUri, e);
         }
         
-        final CountDownLatch barrier = new CountDownLatch(1);
-        player.setOnCompletionListener(new OnCompletionListener() {
-            @Override
-            public void onCompletion(MediaPlayer mp) {
-                barrier.countDown();
-            }
-        });
-        
+        play(player, token);
+    }
+    
+    /**
+     * Start a prepared {@link MediaPlayer}, and wait for the end of the media.
+     * The player is released when this method returns.
+     */
+    private static void play(MediaPlayer player, CancellationToken token)
+            throws InterruptedException {
         try {
-            player.start();
-            barrier.await();
+            Outputs.play(new PlayerOutput(player), 0, token);
         } finally {
-            barrier.countDown();
             player.release();
         }
     }
     
-    public static void vibrate(Context context) throws InterruptedException {
+    public static void vibrate(Context context, CancellationToken token)
+            throws InterruptedException {
         final Vibrator vibrator = (Vibrator) context
                 .getSystemService(Context.VIBRATOR_SERVICE);
-        vibrator.vibrate(VIBRATOR_PATTERN, 1);
+        Outputs.play(new Output() {
+            @Override
+            public void start(Runnable completion) {
+                vibrator.vibrate(VIBRATOR_PATTERN, 1);
+            }
+            
+            @Override
+            public void stop() {
+                vibrator.cancel();
+            }
+        }, VIBRATE_DURATION, token);
+    }
+    
+    /**
+     * Speak a text. If no locale is set, the device locale is used.
+     */
+    public static void say(Context context, String text, Locale locale,
+            CancellationToken token) throws ActionExecutionFailedException,
+            InterruptedException {
+        if (locale == null) {
+            locale = context.getResources().getConfiguration().locale;
+        }
+        
+        // repeated texts are played from the speech cache,
+        // without using the TTS engine
+        final SpeechCache cache = SpeechCache.get(context);
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = SpeechCache.key(text, locale, SpeechCache
+                    .getDefaultEngine(context));
+            final File cachedSpeech = cache.get(cacheKey);
+            if (cachedSpeech != null) {
+                if (DEV) {
+                    Log.d(TAG, "Speak using cache: " + text);
+                }
+                playSpeech(cache, cacheKey, cachedSpeech, token);
+                return;
+            }
+        }
+        
+        final SpeechEngine engine = SpeechEngine.get(context);
+        final TextToSpeech tts = engine.acquire(locale, token);
+        final TtsUtteranceBarrier utteranceBarrier = new TtsUtteranceBarrier();
+        final Runnable cancelListener = new Runnable() {
+            @Override
+            public void run() {
+                tts.stop();
+                utteranceBarrier.releaseAll();
+            }
+        };
+        
+        boolean cached = false;
         try {
-            Thread.sleep(1000 * 10);
+            tts.setOnUtteranceCompletedListener(utteranceBarrier);
+            // the text is spoken right away: the first chunk is heard while
+            // the next ones are synthesized
+            speakChunks(tts, utteranceBarrier, SpeechChunker.split(text,
+                locale), token);
+            
+            // a short text is then synthesized to the cache, while the voice
+            // is held: if the text is repeated, the cached file is played
+            if (cache != null && text.length() <= MAX_CACHED_TEXT_LENGTH) {
+                token.addListener(cancelListener);
+                cached = synthesizeToCache(tts, utteranceBarrier, cache,
+                    cacheKey, text, token) != null;
+            }
         } finally {
-            vibrator.cancel();
+            token.removeListener(cancelListener);
+            tts.setOnUtteranceCompletedListener(null);
+            engine.release(tts);
+        }
+        if (cached) {
+            cache.preload(cacheKey);
         }
     }
     
-    public static void say(Context context, String text)
+    /**
+     * Play an audio file from the speech cache. A player is then prepared for
+     * this file, in case the text is repeated.
+     */
+    private static void playSpeech(SpeechCache cache, String cacheKey,
+            File file, CancellationToken token)
             throws ActionExecutionFailedException, InterruptedException {
-        final CountDownLatch initBarrier = new CountDownLatch(1);
+        final MediaPlayer player;
+        try {
+            player = cache.openPlayer(cacheKey, file);
+        } catch (IOException e) {
+            throw new ActionExecutionFailedException(
+                    "Failed to play cached speech: " + file, e);
+        }
+        play(player, token);
+        cache.preload(cacheKey);
+    }
+    
+    /**
+     * Speak text chunks, on the ring stream.
+     */
+    private static void speakChunks(final TextToSpeech tts,
+            UtteranceBarrier utteranceBarrier, List<String> chunks,
+            CancellationToken token) throws InterruptedException {
+        final HashMap<String, String> ttsParams = new HashMap<String, String>(
+                2);
+        ttsParams.put(TextToSpeech.Engine.KEY_PARAM_STREAM, String
+                .valueOf(AudioManager.STREAM_RING));
+        Outputs.speak(new Speaker() {
+            @Override
+            public void speak(String text, String utteranceId) {
+                ttsParams.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID,
+                    utteranceId);
+                if (DEV) {
+                    Log.d(TAG, "Speak using TTS: " + text);
+                }
+                tts.speak(text, TextToSpeech.QUEUE_ADD, ttsParams);
+            }
+            
+            @Override
+            public void stop() {
+                tts.stop();
+            }
+        }, utteranceBarrier, chunks, MAX_QUEUED_CHUNKS, token);
         if (DEV) {
-            Log.d(TAG, "Initializing TTS");
+            Log.d(TAG, "Speak done");
+        }
+    }
+    
+    /**
+     * Render a text to an audio file, which is stored in the speech cache.
+     * @return cached audio file, or <code>null</code> if the text could not
+     *         be synthesized
+     */
+    private static File synthesizeToCache(TextToSpeech tts,
+            UtteranceBarrier utteranceBarrier, SpeechCache cache,
+            String cacheKey, String text, CancellationToken token)
+            throws InterruptedException {
+        final File tempFile;
+        try {
+            tempFile = cache.createTempFile();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to create speech cache file", e);
+            return null;
         }
-        final TextToSpeech tts = new TextToSpeech(context,
-                new OnInitListener() {
-                    @Override
-                    public void onInit(int status) {
-                        initBarrier.countDown();
-                    }
-                });
         
+        final HashMap<String, String> ttsParams = new HashMap<String, String>(
+                1);
+        ttsParams.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, "cache");
+        final CountDownLatch synthesisBarrier = utteranceBarrier
+                .expect("cache");
+        boolean done = false;
         try {
-            initBarrier.await();
-            
-            if (DEV) {
-                Log.d(TAG, "TTS initialized");
+            if (tts.synthesizeToFile(text, ttsParams, tempFile
+                    .getAbsolutePath()) == TextToSpeech.SUCCESS) {
+                done = synthesisBarrier.await(SYNTHESIS_TIMEOUT,
+                    TimeUnit.MILLISECONDS)
+                        && !token.isCancelled();
             }
-            
-            // check if TTS resources are available
-            Locale locale = context.getResources().getConfiguration().locale;
-            final int languageResult = tts.isLanguageAvailable(locale);
-            if (TextToSpeech.LANG_MISSING_DATA == languageResult) {
-                throw new ActionExecutionFailedException(
-                        "Missing text-to-speech data: "
-                                + "you may install TTS package from Android Market");
-            }
-            if (TextToSpeech.LANG_NOT_SUPPORTED == languageResult) {
-                // defaulting to english if the language is not supported
-                locale = Locale.ENGLISH;
+        } finally {
+            if (done) {
+                cache.put(cacheKey, tempFile);
+                if (DEV) {
+                    Log.d(TAG, "Speech cached: " + text);
+                }
+            } else {
+                Log.w(TAG, "Failed to synthesize speech to " + tempFile);
+                tempFile.delete();
             }
+        }
+        return done ? cache.get(cacheKey) : null;
+    }
+    
+    /**
+     * Send device locations. Locations are dropped if they cannot be sent:
+     * the next upload includes more recent locations. This method is called
+     * by {@link DeviceRegistrationService}.
+     * @param locations JSON array of locations
+     */
+    static void sendLocations(DeviceApi api, String locations) {
+        try {
             if (DEV) {
-                Log.d(TAG, "Using " + locale + " for TTS");
+                Log.d(TAG, "Sending locations: " + locations);
             }
-            tts.setLanguage(locale);
-            
-            final HashMap<String, String> ttsParams = new HashMap<String, String>(
-                    2);
-            ttsParams.put(TextToSpeech.Engine.KEY_PARAM_STREAM, String
-                    .valueOf(AudioManager.STREAM_RING));
-            ttsParams.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, text);
-            
-            final CountDownLatch playBarrier = new CountDownLatch(1);
-            final OnUtteranceCompletedListener ttsListener = new OnUtteranceCompletedListener() {
-                @Override
-                public void onUtteranceCompleted(String utteranceId) {
-                    playBarrier.countDown();
-                }
-            };
-            tts.setOnUtteranceCompletedListener(ttsListener);
-            
+            final int statusCode = api.post("location", DeviceApi
+                    .createJsonEntity(locations));
+            if (statusCode != DeviceApi.HTTP_SC_OK && DEV) {
+                Log.w(TAG, "Failed to send locations: statusCode="
+                        + statusCode);
+            }
+        } catch (Exception e) {
+            DeviceApi.logError(e);
+        }
+    }
+    
+    /**
+     * Locate the device. The last known location from every provider is
+     * uploaded right away. More accurate locations are then uploaded in
+     * batches, until the target accuracy or the timeout is reached: location
+     * updates are stopped as soon as this method returns.
+     */
+    public static void locate(Context context, CancellationToken token)
+            throws ActionExecutionFailedException, InterruptedException {
+        final LocationManager lm = (LocationManager) context
+                .getSystemService(Context.LOCATION_SERVICE);
+        final LocationBatch batch = new LocationBatch();
+        for (final String provider : lm.getAllProviders()) {
+            batch.onLocationChanged(lm.getLastKnownLocation(provider));
+        }
+        batch.flush(context);
+        if (batch.isAccurate()) {
             if (DEV) {
-                Log.d(TAG, "Speak using TTS: " + text);
+                Log.d(TAG, "Last known location is accurate");
+            }
+            return;
+        }
+        
+        final List<String> providers = lm.getProviders(true);
+        providers.remove(LocationManager.PASSIVE_PROVIDER);
+        if (providers.isEmpty()) {
+            throw new ActionExecutionFailedException(
+                    "No location provider is enabled");
+        }
+        
+        final Runnable cancelListener = new Runnable() {
+            @Override
+            public void run() {
+                lm.removeUpdates(batch);
+                batch.wakeUp();
+            }
+        };
+        try {
+            token.addListener(cancelListener);
+            // location updates are delivered to the main thread: this thread
+            // is not a looper thread
+            for (final String provider : providers) {
+                lm.requestLocationUpdates(provider, 0, 0, batch, Looper
+                        .getMainLooper());
             }
-            tts.speak(text, TextToSpeech.QUEUE_ADD, ttsParams);
             
-            playBarrier.await();
-            if (DEV) {
-                Log.d(TAG, "Speak done");
+            final long deadline = SystemClock.elapsedRealtime()
+                    + LOCATE_TIMEOUT;
+            for (long remaining = LOCATE_TIMEOUT; remaining > 0
+                    && !batch.isAccurate(); remaining = deadline
+                    - SystemClock.elapsedRealtime()) {
+                batch.await(Math.min(remaining, LOCATE_BATCH_INTERVAL));
+                token.throwIfCancelled();
+                batch.flush(context);
             }
         } finally {
-            tts.shutdown();
+            token.removeListener(cancelListener);
+            lm.removeUpdates(batch);
+            batch.flush(context);
+            if (DEV) {
+                Log.d(TAG, "Locate done: " + batch.best);
+            }
+        }
+    }
+    
+    /**
+     * Location listener, keeping locations which are better than the
+     * previous ones until they are uploaded.
+     * @author Pixmob
+     */
+    private static class LocationBatch implements LocationListener {
+        private final List<Location> pending = new ArrayList<Location>(4);
+        Location best;
+        
+        @Override
+        public synchronized void onLocationChanged(Location location) {
+            if (location == null || !isBetter(location)) {
+                return;
+            }
+            best = location;
+            pending.add(location);
+            if (isAccurate()) {
+                notifyAll();
+            }
         }
+        
+        private boolean isBetter(Location location) {
+            if (best == null) {
+                return true;
+            }
+            final long timeDelta = location.getTime() - best.getTime();
+            if (timeDelta > MAX_LOCATION_AGE) {
+                return true;
+            }
+            if (timeDelta < -MAX_LOCATION_AGE) {
+                return false;
+            }
+            if (!location.hasAccuracy()) {
+                return false;
+            }
+            return !best.hasAccuracy()
+                    || location.getAccuracy() < best.getAccuracy();
+        }
+        
+        /**
+         * Check if the best location is recent, and if it reaches the target
+         * accuracy.
+         */
+        public synchronized boolean isAccurate() {
+            return best != null
+                    && best.hasAccuracy()
+                    && best.getAccuracy() <= LOCATE_TARGET_ACCURACY
+                    && System.currentTimeMillis() - best.getTime() < MAX_LOCATION_AGE;
+        }
+        
+        /**
+         * Wait until the target accuracy is reached or some time has elapsed.
+         */
+        public synchronized void await(long millis) throws InterruptedException {
+            if (!isAccurate()) {
+                wait(millis);
+            }
+        }
+        
+        public synchronized void wakeUp() {
+            notifyAll();
+        }
+        
+        /**
+         * Upload pending locations.
+         */
+        public void flush(Context context) {
+            final JSONArray locations = new JSONArray();
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                try {
+                    for (final Location location : pending) {
+                        final JSONObject json = new JSONObject();
+                        json.put("provider", location.getProvider());
+                        json.put("lat", location.getLatitude());
+                        json.put("lon", location.getLongitude());
+                        json.put("time", location.getTime());
+                        if (location.hasAccuracy()) {
+                            json.put("acc", location.getAccuracy());
+                        }
+                        locations.put(json);
+                    }
+                } catch (JSONException e) {
+                    Log.wtf(TAG, "Failed to encode locations", e);
+                    return;
+                } finally {
+                    pending.clear();
+                }
+            }
+            DeviceRegistrationService.uploadLocations(context, locations
+                    .toString());
+        }
+        
+        @Override
+        public void onProviderDisabled(String provider) {
+        }
+        
+        @Override
+        public void onProviderEnabled(String provider) {
+        }
+        
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+        }
+    }
+    
+    /**
+     * Media player output.
+     * @author Pixmob
+     */
+    private static class PlayerOutput implements Output {
+        private final MediaPlayer player;
+        
+        public PlayerOutput(final MediaPlayer player) {
+            this.player = player;
+        }
+        
+        @Override
+        public void start(final Runnable completion) {
+            player.setOnCompletionListener(new OnCompletionListener() {
+                @Override
+                public void onCompletion(MediaPlayer mp) {
+                    completion.run();
+                }
+            });
+            player.start();
+        }
+        
+        @Override
+        public void stop() {
+            player.stop();
+        }
+    }
+    
+    /**
+     * Utterance barrier, registered with a text-to-speech engine.
+     * @author Pixmob
+     */
+    private static class TtsUtteranceBarrier extends UtteranceBarrier
+            implements OnUtteranceCompletedListener {
     }
 }
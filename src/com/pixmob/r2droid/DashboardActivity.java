@@ -44,11 +44,16 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.DialogInterface.OnClickListener;
 import android.content.DialogInterface.OnDismissListener;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.text.TextUtils;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver.OnPreDrawListener;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -61,14 +66,42 @@ public class DashboardActivity extends Activity {
     private static final Map<String, Integer> ERROR_STRINGS = new HashMap<String, Integer>(
             5);
     private static final int SELECT_ACCOUNT_REQUEST = 1337;
+    private static final int ADD_ACCOUNT_REQUEST = 1338;
     private static final int PROGRESS_DIALOG = 1;
     private static final int ERROR_DIALOG = 2;
+    private static final int LOCAL_COMMANDS_MENU = 1;
+    private static final int ADD_ACCOUNT_MENU = 2;
     private State state;
     
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTimer.onActivityCreated();
         
+        // the layout is a placeholder until the state is loaded
+        setContentView(R.layout.dashboard);
+        final View root = getWindow().getDecorView();
+        root.getViewTreeObserver().addOnPreDrawListener(
+            new OnPreDrawListener() {
+                @Override
+                public boolean onPreDraw() {
+                    root.getViewTreeObserver().removeOnPreDrawListener(this);
+                    StartupTimer.onFirstFrame();
+                    return true;
+                }
+            });
+        
+        registerReceiver(onUpdateUIReceiver, new IntentFilter(
+                DeviceRegistrationService.ACTION_UPDATE_UI));
+        
+        state = (State) getLastNonConfigurationInstance();
+        if (state == null) {
+            state = new State();
+        }
+        state.attach(this);
+    }
+    
+    private static synchronized Integer getErrorString(String error) {
         if (ERROR_STRINGS.isEmpty()) {
             ERROR_STRINGS.put(C2DM_PHONE_REGISTRATION_ERROR,
                 R.string.c2dm_phone_registration_error);
@@ -82,17 +115,56 @@ public class DashboardActivity extends Activity {
             ERROR_STRINGS.put(DEVICE_UNREGISTRATION_ERROR,
                 R.string.device_unregistration_error);
         }
-        
-        setContentView(R.layout.dashboard);
-        
-        registerReceiver(onUpdateUIReceiver, new IntentFilter(
-                DeviceRegistrationService.ACTION_UPDATE_UI));
-        
-        state = (State) getLastNonConfigurationInstance();
-        if (state == null) {
-            state = new State();
+        return ERROR_STRINGS.get(error);
+    }
+    
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        menu.add(Menu.NONE, LOCAL_COMMANDS_MENU, Menu.NONE,
+            R.string.enable_local_commands);
+        menu.add(Menu.NONE, ADD_ACCOUNT_MENU, Menu.NONE, R.string.add_account);
+        return true;
+    }
+    
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        final boolean enabled = Preferences
+                .isLocalServerEnabled(getApplicationContext());
+        menu.findItem(LOCAL_COMMANDS_MENU).setTitle(
+            enabled ? R.string.disable_local_commands
+                    : R.string.enable_local_commands);
+        return true;
+    }
+    
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (LOCAL_COMMANDS_MENU == item.getItemId()) {
+            final Context context = getApplicationContext();
+            final boolean enabled = !Preferences.isLocalServerEnabled(context);
+            Preferences.setLocalServerEnabled(context, enabled);
+            final Intent i = new Intent(this, LocalCommandService.class);
+            if (enabled) {
+                startService(i);
+                Toast.makeText(
+                    this,
+                    getString(R.string.local_commands_enabled,
+                        LocalCommandService.PORT, Preferences
+                                .getLocalServerToken(context)),
+                    Toast.LENGTH_LONG).show();
+            } else {
+                stopService(i);
+                Toast.makeText(this, R.string.local_commands_disabled,
+                    Toast.LENGTH_SHORT).show();
+            }
+            return true;
         }
-        state.attach(this);
+        if (ADD_ACCOUNT_MENU == item.getItemId()) {
+            startActivityForResult(
+                new Intent(this, SelectAccountActivity.class),
+                ADD_ACCOUNT_REQUEST);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
     }
     
     @Override
@@ -133,10 +205,7 @@ public class DashboardActivity extends Activity {
             final TextView accountName = (TextView) findViewById(R.id.account_name);
             accountName.setText(null);
         } else if (event == CONNECTED_EVENT) {
-            final String account = Preferences
-                    .getAccount(getApplicationContext());
-            final TextView accountName = (TextView) findViewById(R.id.account_name);
-            accountName.setText(account);
+            updateAccountNames();
         }
         
         final ImageView statusIcon = (ImageView) findViewById(R.id.status_icon);
@@ -206,16 +275,37 @@ public class DashboardActivity extends Activity {
             }
             
             Preferences.setAccount(getApplicationContext(), account);
-            final TextView accountName = (TextView) findViewById(R.id.account_name);
-            accountName.setText(account);
+            updateAccountNames();
             if (account != null) {
                 connect();
             }
+        } else if (ADD_ACCOUNT_REQUEST == requestCode) {
+            if (resultCode != RESULT_OK) {
+                return;
+            }
+            final String account = data
+                    .getStringExtra(SelectAccountActivity.KEY_ACCOUNT);
+            if (DEV) {
+                Log.i(TAG, "Added account: " + account);
+            }
+            final Context context = getApplicationContext();
+            Preferences.addAccount(context, account);
+            updateAccountNames();
+            if (Preferences.isOnline(context)) {
+                // the registration id is sent again for every account
+                connect();
+            }
         } else {
             Log.wtf(TAG, "Unknown request code for result: " + resultCode);
         }
     }
     
+    private void updateAccountNames() {
+        final TextView accountName = (TextView) findViewById(R.id.account_name);
+        accountName.setText(TextUtils.join(", ", Preferences
+                .getAccounts(getApplicationContext())));
+    }
+    
     public void onConnect(View view) {
         String account = Preferences.getAccount(getApplicationContext());
         
@@ -233,11 +323,13 @@ public class DashboardActivity extends Activity {
     }
     
     private void connect() {
-        startService(new Intent(DeviceRegistrationService.ACTION_CONNECT));
+        startService(DeviceRegistrationService.newIntent(this,
+                DeviceRegistrationService.ACTION_CONNECT));
     }
     
     public void onDisconnect(View view) {
-        startService(new Intent(DeviceRegistrationService.ACTION_DISCONNECT));
+        startService(DeviceRegistrationService.newIntent(this,
+                DeviceRegistrationService.ACTION_DISCONNECT));
     }
     
     private void dismissDialogQuietly(int id) {
@@ -251,7 +343,7 @@ public class DashboardActivity extends Activity {
     protected Dialog onCreateDialog(final int id, final Bundle args) {
         if (ERROR_DIALOG == id) {
             final String error = args.getString("error");
-            final Integer messageRes = ERROR_STRINGS.get(error);
+            final Integer messageRes = getErrorString(error);
             final String messageStr;
             if (messageRes != null) {
                 messageStr = getString(messageRes);
@@ -334,11 +426,8 @@ public class DashboardActivity extends Activity {
         };
         
         public void fireEvent(int event, String error) {
-            final Message msg = new Message();
-            msg.what = EVENT_UPDATED;
-            msg.arg1 = event;
-            msg.obj = error;
-            handler.sendMessage(msg);
+            handler.obtainMessage(EVENT_UPDATED, event, 0, error)
+                    .sendToTarget();
         }
         
         public void attach(final DashboardActivity activity) {
@@ -347,15 +436,35 @@ public class DashboardActivity extends Activity {
             }
             this.activity = activity;
             
-            if (Preferences.isOnline(activity.getApplicationContext())) {
-                fireEvent(CONNECTED_EVENT, null);
-            } else {
-                fireEvent(DISCONNECTED_EVENT, null);
-            }
+            // preferences are read from the disk: the activity is displayed
+            // without waiting for the state
+            new LoadStateTask().execute(activity.getApplicationContext());
         }
         
         public void detach() {
             activity = null;
         }
+        
+        /**
+         * Task for loading the application state.
+         * @author Pixmob
+         */
+        private class LoadStateTask extends AsyncTask<Context, Void, Boolean> {
+            @Override
+            protected Boolean doInBackground(Context... params) {
+                final Context context = params[0];
+                if (Preferences.isLocalServerEnabled(context)) {
+                    context.startService(new Intent(context,
+                            LocalCommandService.class));
+                }
+                return Preferences.isOnline(context);
+            }
+            
+            @Override
+            protected void onPostExecute(Boolean online) {
+                StartupTimer.onStateReady();
+                fireEvent(online ? CONNECTED_EVENT : DISCONNECTED_EVENT, null);
+            }
+        }
     }
 }
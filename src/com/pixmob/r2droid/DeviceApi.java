@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.DEV;
+import static com.pixmob.r2droid.Constants.TAG;
+
+import java.io.IOException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.pixmob.appengine.client.AppEngineAuthenticationException;
+import com.pixmob.appengine.client.AppEngineClient;
+import com.pixmob.r2droid.core.Urls;
+
+/**
+ * Requests to the device API of the central host. Every request is sent
+ * for the registered device, through {@link HostMonitor}: the network use
+ * is reported to {@link NetworkScheduler}, so that deferred work is sent
+ * while the radio is active.
+ * @author Pixmob
+ */
+final class DeviceApi {
+    public static final int HTTP_SC_OK = 200;
+    /**
+     * Status code sent when the central host does not have the expected
+     * state: the reply holds the state to resume from.
+     */
+    public static final int HTTP_SC_CONFLICT = 409;
+    private final Context context;
+    private final AppEngineClient client;
+    private final String regId;
+    
+    public DeviceApi(final Context context, final AppEngineClient client,
+            final String regId) {
+        this.context = context;
+        this.client = client;
+        this.regId = regId;
+    }
+    
+    /**
+     * Get the URL of an endpoint for this device.
+     * @param endpoint endpoint name, such as <code>status</code>
+     */
+    public String getUrl(String endpoint) {
+        return context.getString(R.string.central_url) + "/api/1/"
+                + endpoint + "?regid=" + Urls.encode(regId);
+    }
+    
+    /**
+     * Execute a request.
+     * @param endpoint endpoint name, used for tracking latency
+     */
+    public HttpResponse execute(HttpUriRequest req, String endpoint)
+            throws IOException, AppEngineAuthenticationException {
+        final HttpResponse resp = HostMonitor.execute(client, req, endpoint);
+        NetworkScheduler.onNetworkUsed(context);
+        return resp;
+    }
+    
+    /**
+     * Post an entity to an endpoint.
+     * @return status code
+     */
+    public int post(String endpoint, HttpEntity entity) throws IOException,
+            AppEngineAuthenticationException {
+        final String url = getUrl(endpoint);
+        if (DEV) {
+            Log.d(TAG, "Sending " + entity.getContentLength() + " bytes to "
+                    + url);
+        }
+        final HttpPost req = new HttpPost(url);
+        req.setEntity(entity);
+        return execute(req, endpoint).getStatusLine().getStatusCode();
+    }
+    
+    /**
+     * Create a JSON entity.
+     */
+    public static HttpEntity createJsonEntity(String json)
+            throws IOException {
+        final StringEntity entity = new StringEntity(json, "UTF-8");
+        entity.setContentType("application/json");
+        return entity;
+    }
+    
+    /**
+     * Check if a request was rejected by the central host, and should not be
+     * sent again. Authentication errors and throttling are retried.
+     */
+    public static boolean isRejected(int statusCode) {
+        return statusCode >= 400 && statusCode < 500 && statusCode != 401
+                && statusCode != 403 && statusCode != 408 && statusCode != 429;
+    }
+    
+    /**
+     * Log a request error. Network and authentication errors are expected.
+     */
+    public static void logError(Exception e) {
+        if (e instanceof AppEngineAuthenticationException) {
+            if (DEV) {
+                Log.w(TAG, "Authentication error", e);
+            }
+        } else if (e instanceof IOException) {
+            if (DEV) {
+                Log.w(TAG, "Network error", e);
+            }
+        } else {
+            Log.wtf(TAG, "Unexpected error", e);
+        }
+    }
+}
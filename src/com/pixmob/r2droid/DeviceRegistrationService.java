@@ -18,7 +18,6 @@ package com.pixmob.r2droid;
 import static com.pixmob.r2droid.Constants.AUTH_FAILED_ERROR;
 import static com.pixmob.r2droid.Constants.AUTH_PENDING;
 import static com.pixmob.r2droid.Constants.C2DM_PHONE_REGISTRATION_ERROR;
-import static com.pixmob.r2droid.Constants.C2DM_SENDER_ID;
 import static com.pixmob.r2droid.Constants.CONNECTED_EVENT;
 import static com.pixmob.r2droid.Constants.CONNECTING_EVENT;
 import static com.pixmob.r2droid.Constants.DEV;
@@ -30,24 +29,44 @@ import static com.pixmob.r2droid.Constants.NETWORK_ERROR;
 import static com.pixmob.r2droid.Constants.TAG;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.Context;
 import android.content.Intent;
 import android.net.http.AndroidHttpClient;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.google.android.c2dm.C2DMessaging;
 import com.pixmob.actionservice.ActionExecutionFailedException;
 import com.pixmob.actionservice.ActionService;
 import com.pixmob.appengine.client.AppEngineAuthenticationException;
 import com.pixmob.appengine.client.AppEngineClient;
+import com.pixmob.r2droid.core.AccountRequests;
+import com.pixmob.r2droid.core.AccountRequests.Result;
+import com.pixmob.r2droid.core.CommandSync;
+import com.pixmob.r2droid.core.DeviceRegistration;
 
 /**
  * Device registration service.
@@ -60,37 +79,204 @@ public class DeviceRegistrationService extends ActionService {
     public static final String ACTION_C2DM_REGISTERED = "com.pixmob.r2droid.intent.action.C2DM_REGISTERED";
     public static final String ACTION_C2DM_UNREGISTERED = "com.pixmob.r2droid.intent.action.C2DM_UNREGISTERED";
     public static final String ACTION_C2DM_ERROR = "com.pixmob.r2droid.intent.action.C2DM_ERROR";
+    public static final String ACTION_UPLOAD_RESULTS = "com.pixmob.r2droid.intent.action.UPLOAD_RESULTS";
+    public static final String ACTION_UPLOAD_DATA = "com.pixmob.r2droid.intent.action.UPLOAD_DATA";
+    public static final String ACTION_RUN_DEFERRED = "com.pixmob.r2droid.intent.action.RUN_DEFERRED";
+    public static final String ACTION_SYNC_COMMANDS = "com.pixmob.r2droid.intent.action.SYNC_COMMANDS";
+    public static final String ACTION_RECONCILE = "com.pixmob.r2droid.intent.action.RECONCILE";
+    public static final String ACTION_UPLOAD_LOCATIONS = "com.pixmob.r2droid.intent.action.UPLOAD_LOCATIONS";
+    public static final String ACTION_UPLOAD_STATUS = "com.pixmob.r2droid.intent.action.UPLOAD_STATUS";
     public static final String KEY_EVENT = "event";
+    public static final String KEY_LOCATIONS = "locations";
     public static final String KEY_ERROR = "error";
     public static final int STATUS_UPDATE_DONE = 1;
-    private static final int STATUS_UPDATE_FOREGROUND = 2;
     private static final int HTTP_SC_OK = 200;
+    // TODO get device name
+    private static final String DEVICE_NAME = "Unknown Device";
+    /**
+     * Maximum number of accounts updated at the same time.
+     */
+    private static final int MAX_CONCURRENT_ACCOUNTS = 4;
+    /**
+     * Estimate of the memory held by a pooled connection: socket buffers and
+     * SSL session.
+     */
+    private static final long CONNECTION_RESIDENT_BYTES = 24 * 1024;
+    /**
+     * Estimate of the memory held by an account client: authentication state
+     * and cookies.
+     */
+    private static final long CLIENT_RESIDENT_BYTES = 8 * 1024;
+    private final Map<String, AppEngineClient> accountClients = new HashMap<String, AppEngineClient>(
+            2);
     private AndroidHttpClient httpClient;
     private AppEngineClient gaeClient;
+    private ExecutorService accountExecutor;
+    private AccountRequests<AppEngineClient> accountRequests;
+    private DeviceRegistration<AppEngineClient> registration;
     private PendingIntent dashboardIntent;
     private NotificationManager nm;
+    private volatile long connectStartTime;
+    private final MemoryBudget.Resource httpResource = new MemoryBudget.Resource() {
+        @Override
+        public long getResidentBytes() {
+            long residentBytes;
+            synchronized (accountClients) {
+                residentBytes = accountClients.size() * CLIENT_RESIDENT_BYTES;
+            }
+            final AndroidHttpClient client = httpClient;
+            if (client != null) {
+                final ClientConnectionManager cm = client
+                        .getConnectionManager();
+                if (cm instanceof ThreadSafeClientConnManager) {
+                    residentBytes += ((ThreadSafeClientConnManager) cm)
+                            .getConnectionsInPool()
+                            * CONNECTION_RESIDENT_BYTES;
+                }
+            }
+            return residentBytes;
+        }
+        
+        @Override
+        public void trim(long bytes) {
+            // account clients may be in use: they are not closed, and they
+            // are collected once their requests are done
+            synchronized (accountClients) {
+                accountClients.clear();
+            }
+            final AndroidHttpClient client = httpClient;
+            if (client != null) {
+                client.getConnectionManager().closeIdleConnections(0,
+                    TimeUnit.MILLISECONDS);
+            }
+        }
+    };
+    
+    private final DeviceRegistration.Host<AppEngineClient> registrationHost = new DeviceRegistration.Host<AppEngineClient>() {
+        @Override
+        public int get(AppEngineClient client, String url, String endpoint)
+                throws Exception {
+            if (DEV) {
+                Log.d(TAG, "Sending request: " + url);
+            }
+            final HttpResponse resp = HostMonitor.execute(client, new HttpGet(
+                    url), endpoint);
+            NetworkScheduler.onNetworkUsed(DeviceRegistrationService.this);
+            if (resp.getEntity() != null) {
+                resp.getEntity().consumeContent();
+            }
+            return resp.getStatusLine().getStatusCode();
+        }
+        
+        @Override
+        public boolean isConfirmed(String account, String regId) {
+            return Reconciler.isConfirmed(DeviceRegistrationService.this,
+                account, regId);
+        }
+        
+        @Override
+        public void onConfirmed(String account, String regId) {
+            Reconciler.setConfirmed(DeviceRegistrationService.this, account,
+                regId);
+        }
+        
+        @Override
+        public void onOutOfDate(String account, String regId) {
+            if (DEV) {
+                Log.i(TAG, "Registration is out of date for account "
+                        + account + ": sending registration id " + regId);
+            }
+        }
+    };
     
     public DeviceRegistrationService() {
         super("R2droid Device Registration", 30 * 1000, 2);
     }
     
+    /**
+     * Create an intent for an action of this service. The intent names this
+     * service: the service is not exported, and it does not declare intent
+     * filters.
+     */
+    public static Intent newIntent(Context context, String action) {
+        return new Intent(action, null, context,
+                DeviceRegistrationService.class);
+    }
+    
+    /**
+     * Upload device locations right away. Locations are not deferred: they
+     * are sent while a user is looking for this device.
+     * @param locations JSON array of locations
+     */
+    public static void uploadLocations(Context context, String locations) {
+        final Intent intent = newIntent(context, ACTION_UPLOAD_LOCATIONS);
+        intent.putExtra(KEY_LOCATIONS, locations);
+        context.startService(intent);
+    }
+    
+    /**
+     * Upload the device state right away.
+     */
+    public static void uploadStatus(Context context) {
+        context.startService(newIntent(context, ACTION_UPLOAD_STATUS));
+    }
+    
     @Override
     public void onCreate() {
         super.onCreate();
+        StartupTimer.onServiceCreated(this);
         
         httpClient = AndroidHttpClient.newInstance(
             getString(R.string.http_user_agent), this);
+        // the connection pool allows 2 connections per host by default:
+        // requests for every account are sent at the same time, along with
+        // requests from the other action thread
+        ConnManagerParams.setMaxConnectionsPerRoute(httpClient.getParams(),
+            new ConnPerRouteBean(MAX_CONCURRENT_ACCOUNTS + 2));
+        accountExecutor = Executors
+                .newFixedThreadPool(MAX_CONCURRENT_ACCOUNTS);
+        accountRequests = new AccountRequests<AppEngineClient>(
+                accountExecutor,
+                new AccountRequests.Clients<AppEngineClient>() {
+                    @Override
+                    public AppEngineClient get(String account) {
+                        return getClient(account);
+                    }
+                });
+        registration = new DeviceRegistration<AppEngineClient>(
+                getString(R.string.central_url), accountRequests,
+                registrationHost);
         gaeClient = new AppEngineClient(this, getString(R.string.central_host),
                 httpClient);
+        MemoryBudget.register("HTTP connections", httpResource,
+            MemoryBudget.PRIORITY_LOW);
         
-        dashboardIntent = PendingIntent.getActivity(this, 0, new Intent(this,
-                DashboardActivity.class), 0);
+        dashboardIntent = ForegroundManager.get(this).getDashboardIntent();
         nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        
+        if (Preferences.isOnline(this)) {
+            PushTransports.get(this).resume(this);
+            Reconciler.ensureStarted(this);
+        }
     }
     
     @Override
     public void onDestroy() {
         super.onDestroy();
+        MemoryStats.log("idle");
+        MemoryBudget.unregister(httpResource);
+        if (accountExecutor != null) {
+            accountExecutor.shutdownNow();
+            accountExecutor = null;
+        }
+        accountRequests = null;
+        registration = null;
+        synchronized (accountClients) {
+            for (final AppEngineClient client : accountClients.values()) {
+                client.close();
+            }
+            accountClients.clear();
+        }
         if (gaeClient != null) {
             gaeClient.close();
             gaeClient = null;
@@ -103,6 +289,22 @@ public class DeviceRegistrationService extends ActionService {
         dashboardIntent = null;
     }
     
+    /**
+     * Get the device API of the central host.
+     * @return <code>null</code> if the device is not registered
+     */
+    private DeviceApi getDeviceApi() {
+        final String regId = Preferences
+                .getRegistrationId(getApplicationContext());
+        if (regId == null || !configureClient()) {
+            if (DEV) {
+                Log.i(TAG, "Device is not registered");
+            }
+            return null;
+        }
+        return new DeviceApi(this, gaeClient, regId);
+    }
+    
     private boolean configureClient() {
         final String account = Preferences.getAccount(getApplicationContext());
         if (account == null) {
@@ -131,47 +333,83 @@ public class DeviceRegistrationService extends ActionService {
     @Override
     protected void handleAction(Intent intent)
             throws ActionExecutionFailedException, InterruptedException {
-        startForeground();
-        
         final String action = intent.getAction();
-        if (ACTION_CONNECT.equals(action)) {
-            try {
-                connect();
-            } finally {
-                stopForeground(false);
+        if (ACTION_RUN_DEFERRED.equals(action)) {
+            // background work: no notification is displayed
+            for (final String deferredAction : NetworkScheduler.takeAll(this)) {
+                runDeferred(deferredAction);
             }
-        } else if (ACTION_DISCONNECT.equals(action)) {
-            try {
-                disconnect();
-            } finally {
-                stopForeground(false);
+            return;
+        }
+        if (ACTION_UPLOAD_RESULTS.equals(action)
+                || ACTION_UPLOAD_DATA.equals(action)) {
+            runDeferred(action);
+            return;
+        }
+        if (ACTION_SYNC_COMMANDS.equals(action)) {
+            syncCommands();
+            return;
+        }
+        if (ACTION_RECONCILE.equals(action)) {
+            reconcile();
+            return;
+        }
+        if (ACTION_UPLOAD_LOCATIONS.equals(action)) {
+            final DeviceApi api = getDeviceApi();
+            if (api != null) {
+                Commands.sendLocations(api, intent
+                        .getStringExtra(KEY_LOCATIONS));
             }
-        } else if (ACTION_C2DM_REGISTERED.equals(action)) {
-            try {
-                onC2DMRegistered();
-            } finally {
-                stopForeground(true);
+            return;
+        }
+        if (ACTION_UPLOAD_STATUS.equals(action)) {
+            final DeviceApi api = getDeviceApi();
+            if (api != null) {
+                StatusReports.send(this, api);
             }
-        } else if (ACTION_C2DM_UNREGISTERED.equals(action)) {
-            try {
-                onC2DMUnregistered();
-            } finally {
-                stopForeground(true);
+            return;
+        }
+        
+        final boolean foreground;
+        if ((ACTION_C2DM_REGISTERED.equals(action) || ACTION_C2DM_UNREGISTERED
+                .equals(action))
+                && !HostMonitor.isAvailable()) {
+            // the central host is down: the request fails fast,
+            // and no notification is displayed while it is executed
+            if (DEV) {
+                Log.i(TAG, "Central host is unavailable: "
+                        + "no foreground notification for " + action);
             }
+            foreground = false;
         } else {
-            Log.wtf(TAG, "Unsupported action: " + action);
+            nm.cancel(STATUS_UPDATE_DONE);
+            ForegroundManager.get(this).start(this,
+                getString(R.string.app_name),
+                getString(R.string.updating_device), dashboardIntent);
+            foreground = true;
         }
-    }
-    
-    private void startForeground() {
-        nm.cancel(STATUS_UPDATE_DONE);
         
-        final Notification notification = new Notification(
-                R.drawable.ic_stat_icon, getString(R.string.updating_device),
-                System.currentTimeMillis());
-        notification.setLatestEventInfo(this, getString(R.string.app_name),
-            getString(R.string.updating_device), dashboardIntent);
-        startForeground(STATUS_UPDATE_FOREGROUND, notification);
+        // the notification is kept while waiting for the push transport
+        // callback
+        final boolean removeNotification = !ACTION_CONNECT.equals(action)
+                && !ACTION_DISCONNECT.equals(action);
+        try {
+            if (ACTION_CONNECT.equals(action)) {
+                connect();
+            } else if (ACTION_DISCONNECT.equals(action)) {
+                disconnect();
+            } else if (ACTION_C2DM_REGISTERED.equals(action)) {
+                onC2DMRegistered();
+            } else if (ACTION_C2DM_UNREGISTERED.equals(action)) {
+                onC2DMUnregistered();
+            } else {
+                Log.wtf(TAG, "Unsupported action: " + action);
+            }
+        } finally {
+            if (foreground) {
+                ForegroundManager.get(this).stop(this, removeNotification);
+            }
+        }
     }
     
     private void fireEvent(int event, String error) {
@@ -182,94 +420,145 @@ public class DeviceRegistrationService extends ActionService {
         
         if (event == CONNECTED_EVENT) {
             Preferences.setOnline(getApplicationContext(), true);
+            if (error == null) {
+                Reconciler.start(this);
+            } else {
+                // the device is still online after an error: the check
+                // interval is kept
+                Reconciler.ensureStarted(this);
+            }
         } else if (event == DISCONNECTED_EVENT) {
             Preferences.setOnline(getApplicationContext(), false);
+            Reconciler.stop(this);
         }
     }
     
-    private void connect() {
+    private void connect() throws InterruptedException {
         fireEvent(CONNECTING_EVENT, null);
         if (DEV) {
-            Log.i(TAG, "Registering device to C2DM");
+            Log.i(TAG, "Registering device to push transport");
+            connectStartTime = SystemClock.elapsedRealtime();
         }
-        final boolean serviceAvailable = C2DMessaging.register(this,
-            C2DM_SENDER_ID);
+        final boolean serviceAvailable = PushTransports.get(this).register(
+            this);
         if (!serviceAvailable) {
             fireEvent(DISCONNECTED_EVENT, C2DM_PHONE_REGISTRATION_ERROR);
+            return;
+        }
+        
+        // the registration id is received asynchronously: the connection to
+        // the central host is prepared meanwhile
+        warmUp();
+    }
+    
+    /**
+     * Prepare the connection to the central host while the device is
+     * registering to C2DM. The authentication cookie of every account is
+     * fetched, the host name is resolved and secure connections are opened:
+     * these connections are kept alive in the connection pool, and they are
+     * reused by the registration requests. Any error is ignored, since the
+     * registration requests are sent anyway.
+     */
+    private void warmUp() throws InterruptedException {
+        final List<String> accounts = Preferences
+                .getAccounts(getApplicationContext());
+        if (accounts.isEmpty()) {
+            return;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        final Map<String, Result> results = accountRequests.run(accounts,
+            new AccountRequests.Task<AppEngineClient>() {
+                @Override
+                public int run(String account, AppEngineClient client)
+                        throws IOException, AppEngineAuthenticationException {
+                    final HttpResponse resp = HostMonitor.execute(client,
+                        new HttpHead(getString(R.string.central_url) + "/"),
+                        "warmup");
+                    if (resp.getEntity() != null) {
+                        resp.getEntity().consumeContent();
+                    }
+                    return resp.getStatusLine().getStatusCode();
+                }
+            });
+        checkBudget(accounts);
+        if (DEV) {
+            for (final Map.Entry<String, Result> e : results
+                    .entrySet()) {
+                if (e.getValue().error != null) {
+                    Log.d(TAG, "Cannot prepare connection to central host "
+                            + "for account " + e.getKey(), e.getValue().error);
+                }
+            }
+            Log.d(TAG, "Connection to central host ready in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
         }
     }
     
     private void disconnect() {
         fireEvent(DISCONNECTING_EVENT, null);
-        final boolean serviceAvailable = C2DMessaging.unregister(this);
+        final boolean serviceAvailable = PushTransports.get(this)
+                .unregister(this);
         if (!serviceAvailable) {
             fireEvent(CONNECTED_EVENT, C2DM_PHONE_REGISTRATION_ERROR);
         }
     }
     
-    private void onC2DMRegistered() {
+    /**
+     * Send the registration id to the central host, for every account. The
+     * device is online if at least one account is registered: other accounts
+     * are registered again by the reconciler.
+     */
+    private void onC2DMRegistered() throws InterruptedException {
         final String regId = Preferences
                 .getRegistrationId(getApplicationContext());
         if (DEV) {
-            Log.i(TAG, "Device registered to C2DM with id " + regId);
+            Log.i(TAG, "Device registered to push transport with id " + regId);
         }
         
         int event = CONNECTED_EVENT;
         String error = null;
         
-        // TODO get device name
-        final String deviceName = "Unknown Device";
-        try {
-            final String url = "https://r2droidhq.appspot.com/api/1/register?regid="
-                    + urlEncode(regId) + "&name=" + urlEncode(deviceName);
-            if (DEV) {
-                Log.d(TAG, "Register URL: " + url);
-            }
-            final HttpGet req = new HttpGet(url);
-            if (!configureClient()) {
-                event = DISCONNECTED_EVENT;
-                error = AUTH_FAILED_ERROR;
-            } else {
-                final int statusCode = gaeClient.execute(req).getStatusLine()
-                        .getStatusCode();
-                if (statusCode != HTTP_SC_OK) {
+        final List<String> accounts = Preferences
+                .getAccounts(getApplicationContext());
+        if (accounts.isEmpty()) {
+            event = DISCONNECTED_EVENT;
+            error = AUTH_FAILED_ERROR;
+        } else {
+            final Map<String, Result> results = registration.register(
+                accounts, regId, DEVICE_NAME);
+            checkBudget(accounts);
+            int registered = 0;
+            for (final String account : accounts) {
+                final Result result = results.get(account);
+                final String accountError = getError(result,
+                    DEVICE_REGISTRATION_ERROR);
+                if (accountError == null) {
+                    ++registered;
+                } else {
                     if (DEV) {
-                        Log.w(TAG, "Failed to register device: statusCode="
-                                + statusCode);
+                        Log.w(TAG, "Failed to register device for account "
+                                + account + ": statusCode="
+                                + result.statusCode, result.error);
+                    }
+                    if (error == null) {
+                        error = accountError;
                     }
-                    event = DISCONNECTED_EVENT;
-                    error = DEVICE_REGISTRATION_ERROR;
                 }
             }
-        } catch (AppEngineAuthenticationException e) {
-            if (e.isAuthenticationPending()) {
-                if (DEV) {
-                    Log.i(TAG,
-                        "User must give permission to use authentication token: "
-                                + "registration aborted");
-                }
+            if (registered == 0) {
                 event = DISCONNECTED_EVENT;
-                error = AUTH_PENDING;
             } else {
-                if (DEV) {
-                    Log.w(TAG, "Authentication error", e);
-                }
-                event = DISCONNECTED_EVENT;
-                error = AUTH_FAILED_ERROR;
+                error = null;
             }
-        } catch (IOException e) {
-            if (DEV) {
-                Log.w(TAG, "Network error", e);
-            }
-            event = DISCONNECTED_EVENT;
-            error = NETWORK_ERROR;
-        } catch (Exception e) {
-            Log.wtf(TAG, "Unexpected error", e);
-            event = DISCONNECTED_EVENT;
-            error = DEVICE_REGISTRATION_ERROR;
         }
         
         fireEvent(event, error);
+        if (DEV && connectStartTime != 0) {
+            Log.i(TAG, "Device connection done in "
+                    + (SystemClock.elapsedRealtime() - connectStartTime)
+                    + " ms");
+            connectStartTime = 0;
+        }
         
         int ticketRes = R.string.device_is_online;
         if (event != CONNECTED_EVENT) {
@@ -283,67 +572,104 @@ public class DeviceRegistrationService extends ActionService {
         nm.notify(STATUS_UPDATE_DONE, notification);
     }
     
-    private void onC2DMUnregistered() {
-        final String regId = Preferences
-                .getRegistrationId(getApplicationContext());
-        if (DEV) {
-            Log.i(TAG, "Device unregistered from C2DM");
+    /**
+     * Check the registration known by the central host, for every account.
+     * The registration is only sent again if the registration id was
+     * changed, or if the central host does not know this device for an
+     * account.
+     */
+    private void reconcile() throws InterruptedException {
+        final Context context = getApplicationContext();
+        final List<String> accounts = Preferences.getAccounts(context);
+        if (!Preferences.isOnline(context) || accounts.isEmpty()) {
+            Reconciler.stop(this);
+            return;
         }
         
-        int event = DISCONNECTED_EVENT;
-        String error = null;
-        
-        try {
-            final String url = "https://r2droidhq.appspot.com/api/1/unregister?regid="
-                    + urlEncode(regId);
+        final PushTransport transport = PushTransports.get(this);
+        final String regId = transport.getRegistrationId(this);
+        if (regId == null) {
+            // the registration expired: the device is registered again,
+            // and the new registration id is sent from the transport callback
             if (DEV) {
-                Log.d(TAG, "Unregister URL: " + url);
+                Log.i(TAG, "Push registration is missing: registering again");
             }
-            final HttpGet req = new HttpGet(url);
-            if (!configureClient()) {
-                event = CONNECTED_EVENT;
-                error = AUTH_FAILED_ERROR;
-            } else {
-                final int statusCode = gaeClient.execute(req).getStatusLine()
-                        .getStatusCode();
-                if (statusCode == HTTP_SC_OK) {
-                    Preferences.setAccount(getApplicationContext(), null);
-                } else {
-                    if (DEV) {
-                        Log.w(TAG, "Failed to unregister device: statusCode="
-                                + statusCode);
-                    }
-                    event = CONNECTED_EVENT;
-                    error = DEVICE_UNREGISTRATION_ERROR;
+            transport.register(this);
+            Reconciler.onInconsistent(this);
+            return;
+        }
+        
+        final boolean regIdChanged = !regId.equals(Preferences
+                .getRegistrationId(context));
+        if (regIdChanged) {
+            Preferences.setRegistrationId(context, regId);
+        }
+        final Map<String, Result> results = new HashMap<String, Result>(
+                accounts.size());
+        final boolean consistent = registration.reconcile(accounts, regId,
+            regIdChanged, DEVICE_NAME, results);
+        checkBudget(accounts);
+        if (DEV) {
+            for (final Map.Entry<String, Result> e : results.entrySet()) {
+                final Result result = e.getValue();
+                if (result.error != null || result.statusCode != HTTP_SC_OK) {
+                    Log.w(TAG, "Failed to check registration for account "
+                            + e.getKey() + ": statusCode="
+                            + result.statusCode, result.error);
                 }
             }
-        } catch (AppEngineAuthenticationException e) {
-            if (e.isAuthenticationPending()) {
+        }
+        if (consistent) {
+            if (DEV) {
+                Log.d(TAG, "Registration is consistent");
+            }
+            Reconciler.onConsistent(this);
+        } else {
+            Reconciler.onInconsistent(this);
+        }
+    }
+    
+    /**
+     * Remove this device from the central host, for every account. Accounts
+     * are forgotten once the device is unregistered: the device is offline
+     * when no account is left.
+     */
+    private void onC2DMUnregistered() throws InterruptedException {
+        final String regId = Preferences
+                .getRegistrationId(getApplicationContext());
+        if (DEV) {
+            Log.i(TAG, "Device unregistered from push transport");
+        }
+        PushDispatcher.get(this).reset();
+        
+        final List<String> accounts = Preferences
+                .getAccounts(getApplicationContext());
+        final Map<String, Result> results = registration.unregister(
+            accounts, regId);
+        checkBudget(accounts);
+        
+        String error = null;
+        final List<String> remainingAccounts = new ArrayList<String>(accounts
+                .size());
+        for (final String account : accounts) {
+            final Result result = results.get(account);
+            final String accountError = getError(result,
+                DEVICE_UNREGISTRATION_ERROR);
+            if (accountError != null) {
                 if (DEV) {
-                    Log.i(TAG,
-                        "User must give permission to use authentication token: "
-                                + "unregistration aborted", e);
+                    Log.w(TAG, "Failed to unregister device for account "
+                            + account + ": statusCode=" + result.statusCode,
+                        result.error);
                 }
-                event = CONNECTED_EVENT;
-                error = AUTH_PENDING;
-            } else {
-                if (DEV) {
-                    Log.w(TAG, "Authentication error", e);
+                remainingAccounts.add(account);
+                if (error == null) {
+                    error = accountError;
                 }
-                event = CONNECTED_EVENT;
-                error = AUTH_FAILED_ERROR;
             }
-        } catch (IOException e) {
-            if (DEV) {
-                Log.w(TAG, "Network error", e);
-            }
-            event = CONNECTED_EVENT;
-            error = NETWORK_ERROR;
-        } catch (Exception e) {
-            Log.wtf(TAG, "Unexpected error", e);
-            event = CONNECTED_EVENT;
-            error = DEVICE_UNREGISTRATION_ERROR;
         }
+        Preferences.setAccounts(getApplicationContext(), remainingAccounts);
+        final int event = remainingAccounts.isEmpty() ? DISCONNECTED_EVENT
+                : CONNECTED_EVENT;
         
         fireEvent(event, error);
         
@@ -359,22 +685,174 @@ public class DeviceRegistrationService extends ActionService {
         nm.notify(STATUS_UPDATE_DONE, notification);
     }
     
+    /**
+     * Get the client for an account. Each account has its own client, with
+     * its own authentication session. The primary account uses the client
+     * shared by requests which are not specific to an account.
+     */
+    private AppEngineClient getClient(String account) {
+        if (account.equals(Preferences.getAccount(getApplicationContext()))) {
+            gaeClient.setAccount(account);
+            return gaeClient;
+        }
+        synchronized (accountClients) {
+            AppEngineClient client = accountClients.get(account);
+            if (client == null) {
+                client = new AppEngineClient(this,
+                        getString(R.string.central_host), httpClient, account);
+                accountClients.put(account, client);
+            }
+            return client;
+        }
+    }
+    
+    /**
+     * Concurrent requests for several accounts may have filled the
+     * connection pool.
+     */
+    private static void checkBudget(List<String> accounts) {
+        if (accounts.size() > 1) {
+            MemoryBudget.checkBudget();
+        }
+    }
+    
+    /**
+     * Get the error code for an account request.
+     * @param requestError error code if the request was rejected
+     * @return error code, or <code>null</code> if the request succeeded
+     */
+    private static String getError(Result result, String requestError) {
+        final Exception e = result.error;
+        if (e == null) {
+            return result.statusCode == HTTP_SC_OK ? null : requestError;
+        }
+        if (e instanceof AppEngineAuthenticationException) {
+            return ((AppEngineAuthenticationException) e)
+                    .isAuthenticationPending() ? AUTH_PENDING
+                    : AUTH_FAILED_ERROR;
+        }
+        if (e instanceof IOException) {
+            return NETWORK_ERROR;
+        }
+        Log.wtf(TAG, "Unexpected error", e);
+        return requestError;
+    }
+    
     private void onC2DMError(String error) {
         if (DEV) {
             Log.w(TAG, "C2DM error: " + error);
         }
         final boolean online = Preferences.isOnline(getApplicationContext());
         fireEvent(online ? CONNECTED_EVENT : DISCONNECTED_EVENT, error);
-        stopForeground(true);
+        ForegroundManager.get(this).dismiss();
     }
     
-    private static String urlEncode(String str) {
-        String encoded = str;
+    /**
+     * Fetch every command sent since the last acknowledged cursor, and
+     * execute these commands in order. The cursor is sent with the next
+     * request: the central host removes acknowledged commands.
+     * <p>
+     * Each command holds a sequence number, and the cursor acknowledging it:
+     * the cursor is saved after each command. A command fetched again, or
+     * also received as a push message, is dropped by {@link PushDispatcher}.
+     * </p>
+     */
+    private void syncCommands() {
+        final DeviceApi api = getDeviceApi();
+        if (api == null) {
+            return;
+        }
+        
+        final Context context = getApplicationContext();
+        final PushDispatcher dispatcher = PushDispatcher.get(context);
+        final CommandSync sync = new CommandSync(new CommandSync.Sink() {
+            @Override
+            public void onCommand(String seq, String command) {
+                dispatcher.dispatch(seq, null, null, command);
+            }
+            
+            @Override
+            public void onCursor(String cursor) {
+                Preferences.setCommandCursor(context, cursor);
+            }
+        }, Preferences.getCommandCursor(context));
+        final String url = sync.getUrl(api.getUrl("commands"));
+        if (DEV) {
+            Log.d(TAG, "Sync URL: " + url);
+        }
+        
         try {
-            encoded = URLEncoder.encode(str, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            Log.wtf(TAG, "UTF-8 encoding is unavailable", e);
+            final HttpResponse resp = api.execute(new HttpGet(url),
+                "commands");
+            final int statusCode = resp.getStatusLine().getStatusCode();
+            final String body = resp.getEntity() == null ? null : EntityUtils
+                    .toString(resp.getEntity(), "UTF-8");
+            if (statusCode != HTTP_SC_OK || body == null) {
+                if (DEV) {
+                    Log.w(TAG, "Failed to fetch pending commands: statusCode="
+                            + statusCode);
+                }
+                return;
+            }
+            
+            final JSONObject reply = new JSONObject(body);
+            final JSONArray commands = reply.optJSONArray("commands");
+            final int commandCount = commands == null ? 0 : commands.length();
+            if (DEV) {
+                Log.i(TAG, "Fetched " + commandCount + " pending command(s)");
+            }
+            for (int i = 0; i < commandCount; ++i) {
+                final JSONObject cmd = commands.optJSONObject(i);
+                if (cmd == null) {
+                    // commands with no sequence number
+                    sync.onCommand(null, null, commands.getString(i));
+                } else {
+                    sync.onCommand(cmd.optString("seq", null), cmd.optString(
+                        "cursor", null), cmd.optString("command", null));
+                }
+            }
+            sync.onDone(reply.optString("cursor", null));
+        } catch (JSONException e) {
+            Log.w(TAG, "Invalid pending commands", e);
+        } catch (Exception e) {
+            DeviceApi.logError(e);
+        }
+    }
+    
+    private void runDeferred(String action) {
+        if (DEV) {
+            Log.d(TAG, "Running deferred work: " + action);
+        }
+        final DeviceApi api = getDeviceApi();
+        final boolean done;
+        if (api == null) {
+            // data is kept until the device is registered
+            if (DEV) {
+                Log.i(TAG, "Device is not registered: " + action
+                        + " is not sent");
+            }
+            done = true;
+        } else if (ACTION_UPLOAD_RESULTS.equals(action)) {
+            done = CommandResults.send(this, api);
+        } else if (ACTION_UPLOAD_DATA.equals(action)) {
+            done = Uploads.send(this, api);
+        } else {
+            Log.wtf(TAG, "Unsupported deferred action: " + action);
+            return;
+        }
+        if (done) {
+            NetworkScheduler.onSuccess(action);
+        } else if (!NetworkScheduler.retry(this, action)) {
+            if (ACTION_UPLOAD_RESULTS.equals(action)) {
+                // the buffer would be full if these results were kept
+                Log.w(TAG, "Dropping command results after "
+                        + NetworkScheduler.MAX_RETRIES + " failed uploads");
+                CommandResults.commit(this);
+            } else {
+                // uploads are resumed with the next flush
+                Log.w(TAG, "Uploads failed " + NetworkScheduler.MAX_RETRIES
+                        + " times: retries are stopped");
+            }
         }
-        return encoded;
     }
 }
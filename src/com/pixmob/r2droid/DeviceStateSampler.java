@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.DEV;
+import static com.pixmob.r2droid.Constants.TAG;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.AudioManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.StatFs;
+import android.os.SystemClock;
+import android.telephony.PhoneStateListener;
+import android.telephony.SignalStrength;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+/**
+ * Sampler for the device state: battery, network, signal strength, storage
+ * and ringer mode. Values are updated by system broadcasts and by a phone
+ * state listener: the device is never polled. Free storage has no broadcast:
+ * it is read when a snapshot is taken, at most once per
+ * {@link #SNAPSHOT_TTL}.
+ * <p>
+ * The sampler is started on first use, and it is kept until the process
+ * dies.
+ * </p>
+ * @author Pixmob
+ */
+final class DeviceStateSampler {
+    public static final String BATTERY = "bat";
+    public static final String PLUGGED = "plg";
+    public static final String NETWORK = "net";
+    public static final String SIGNAL = "sig";
+    public static final String STORAGE = "sto";
+    public static final String RINGER = "rng";
+    /**
+     * Time while a snapshot is reused if no value changed.
+     */
+    private static final long SNAPSHOT_TTL = 30 * 1000;
+    private static DeviceStateSampler instance;
+    private final Context context;
+    private final Map<String, String> values = new HashMap<String, String>(8);
+    private Map<String, String> snapshot;
+    private long snapshotTime;
+    
+    private DeviceStateSampler(final Context context) {
+        this.context = context;
+    }
+    
+    public static synchronized DeviceStateSampler get(Context context) {
+        if (instance == null) {
+            instance = new DeviceStateSampler(context.getApplicationContext());
+            instance.start();
+        }
+        return instance;
+    }
+    
+    private void start() {
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(AudioManager.RINGER_MODE_CHANGED_ACTION);
+        final BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onBroadcast(intent);
+            }
+        };
+        // the battery state is a sticky broadcast: it is available right away
+        final Intent battery = context.registerReceiver(receiver, filter);
+        if (battery != null) {
+            onBroadcast(battery);
+        }
+        updateNetwork();
+        updateRinger();
+        
+        // a phone state listener must be created from a looper thread
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                final TelephonyManager tm = (TelephonyManager) context
+                        .getSystemService(Context.TELEPHONY_SERVICE);
+                tm.listen(new SignalListener(),
+                    PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+            }
+        });
+        if (DEV) {
+            Log.d(TAG, "Device state sampler started");
+        }
+    }
+    
+    private void onBroadcast(Intent intent) {
+        final String action = intent.getAction();
+        if (Intent.ACTION_BATTERY_CHANGED.equals(action)) {
+            final int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            final int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE,
+                100);
+            if (level >= 0 && scale > 0) {
+                set(BATTERY, String.valueOf(level * 100 / scale));
+            }
+            final int plugged = intent.getIntExtra(
+                BatteryManager.EXTRA_PLUGGED, 0);
+            set(PLUGGED, plugged == BatteryManager.BATTERY_PLUGGED_AC ? "ac"
+                    : plugged == BatteryManager.BATTERY_PLUGGED_USB ? "usb"
+                            : "no");
+        } else if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)) {
+            updateNetwork();
+        } else if (AudioManager.RINGER_MODE_CHANGED_ACTION.equals(action)) {
+            updateRinger();
+        }
+    }
+    
+    private void updateNetwork() {
+        final ConnectivityManager cm = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        final NetworkInfo network = cm.getActiveNetworkInfo();
+        if (network == null || !network.isConnected()) {
+            set(NETWORK, "none");
+        } else if (network.getType() == ConnectivityManager.TYPE_WIFI) {
+            set(NETWORK, "wifi");
+        } else {
+            final String subtype = network.getSubtypeName();
+            set(NETWORK, subtype == null || subtype.length() == 0 ? "mobile"
+                    : subtype.toLowerCase());
+        }
+    }
+    
+    private void updateRinger() {
+        final AudioManager am = (AudioManager) context
+                .getSystemService(Context.AUDIO_SERVICE);
+        switch (am.getRingerMode()) {
+            case AudioManager.RINGER_MODE_SILENT:
+                set(RINGER, "silent");
+                break;
+            case AudioManager.RINGER_MODE_VIBRATE:
+                set(RINGER, "vibrate");
+                break;
+            default:
+                set(RINGER, "normal");
+        }
+    }
+    
+    private synchronized void set(String key, String value) {
+        if (!value.equals(values.put(key, value))) {
+            // the cached snapshot is obsolete
+            snapshot = null;
+        }
+    }
+    
+    /**
+     * Get the device state. A snapshot is reused for a short time, unless a
+     * value changed.
+     * @return unmodifiable device state
+     */
+    public synchronized Map<String, String> snapshot() {
+        final long now = SystemClock.elapsedRealtime();
+        if (snapshot == null || now - snapshotTime >= SNAPSHOT_TTL) {
+            final StatFs stat = new StatFs(Environment.getDataDirectory()
+                    .getPath());
+            // free storage is reported in megabytes
+            values.put(STORAGE, String.valueOf((long) stat.getAvailableBlocks()
+                    * stat.getBlockSize() / (1024 * 1024)));
+            snapshot = Collections.unmodifiableMap(new HashMap<String, String>(
+                    values));
+            snapshotTime = now;
+        }
+        return snapshot;
+    }
+    
+    /**
+     * Listener for signal strength.
+     * @author Pixmob
+     */
+    private class SignalListener extends PhoneStateListener {
+        @Override
+        public void onSignalStrengthsChanged(SignalStrength signalStrength) {
+            // the signal strength is reported as a number of bars (0 to 4),
+            // which changes far less often than the raw value
+            final int asu = signalStrength.isGsm() ? signalStrength
+                    .getGsmSignalStrength() : (signalStrength.getCdmaDbm() + 113) / 2;
+            final int bars;
+            if (asu <= 2 || asu == 99) {
+                bars = 0;
+            } else if (asu >= 12) {
+                bars = 4;
+            } else if (asu >= 8) {
+                bars = 3;
+            } else if (asu >= 5) {
+                bars = 2;
+            } else {
+                bars = 1;
+            }
+            set(SIGNAL, String.valueOf(bars));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.DEV;
+import static com.pixmob.r2droid.Constants.TAG;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Connection to {@link CommandExecutorService}, from the main process.
+ * Commands are submitted with a {@link Messenger}: the service is bound while
+ * commands are queued, and it is unbound when every submitted command has
+ * returned a result to {@link ResultService}. Commands are kept until the
+ * service is connected.
+ * @author Pixmob
+ */
+final class ExecutorConnection implements ServiceConnection {
+    private static ExecutorConnection instance;
+    private final Context context;
+    private final List<String> pendingCommands = new ArrayList<String>(2);
+    private Messenger messenger;
+    private boolean bound;
+    private int runningCommands;
+    
+    private ExecutorConnection(final Context context) {
+        this.context = context;
+    }
+    
+    public static synchronized ExecutorConnection get(Context context) {
+        if (instance == null) {
+            instance = new ExecutorConnection(context.getApplicationContext());
+        }
+        return instance;
+    }
+    
+    /**
+     * Submit a command for execution. Commands are executed in the order they
+     * are submitted.
+     */
+    public synchronized void submit(String command) {
+        pendingCommands.add(command);
+        if (!bound) {
+            bound = context.bindService(new Intent(context,
+                    CommandExecutorService.class), this,
+                Context.BIND_AUTO_CREATE);
+            if (!bound) {
+                Log.w(TAG, "Cannot bind to command executor service");
+                pendingCommands.clear();
+                return;
+            }
+        }
+        flush();
+    }
+    
+    /**
+     * Cancel the command being executed, if any.
+     */
+    public synchronized void cancel() {
+        if (messenger != null) {
+            send(Message.obtain(null, CommandExecutorService.MSG_CANCEL));
+        }
+    }
+    
+    /**
+     * Notify that a command returned its result. The service is unbound when
+     * no more command is queued.
+     */
+    public synchronized void onCommandFinished() {
+        if (runningCommands > 0) {
+            --runningCommands;
+        }
+        unbindIfIdle();
+    }
+    
+    @Override
+    public synchronized void onServiceConnected(ComponentName name,
+            IBinder service) {
+        messenger = new Messenger(service);
+        flush();
+    }
+    
+    @Override
+    public synchronized void onServiceDisconnected(ComponentName name) {
+        // the command execution process died: commands it was executing are
+        // lost, while pending commands are sent when the service is connected
+        // again
+        messenger = null;
+        if (runningCommands != 0) {
+            Log.w(TAG, "Command execution process died: " + runningCommands
+                    + " command(s) lost");
+            runningCommands = 0;
+        }
+        unbindIfIdle();
+    }
+    
+    private void unbindIfIdle() {
+        if (bound && runningCommands == 0 && pendingCommands.isEmpty()) {
+            context.unbindService(this);
+            bound = false;
+            messenger = null;
+            if (DEV) {
+                Log.d(TAG, "Command queue is empty: executor unbound");
+            }
+        }
+    }
+    
+    private void flush() {
+        while (messenger != null && !pendingCommands.isEmpty()) {
+            final Message msg = Message.obtain(null,
+                CommandExecutorService.MSG_EXECUTE);
+            msg.getData().putString(CommandExecutorService.KEY_COMMAND,
+                pendingCommands.get(0));
+            if (!send(msg)) {
+                return;
+            }
+            pendingCommands.remove(0);
+            ++runningCommands;
+        }
+    }
+    
+    private boolean send(Message msg) {
+        try {
+            messenger.send(msg);
+            return true;
+        } catch (RemoteException e) {
+            if (DEV) {
+                Log.w(TAG, "Failed to send message to command executor", e);
+            }
+            messenger = null;
+            return false;
+        }
+    }
+}
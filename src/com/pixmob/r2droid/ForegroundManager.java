@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Manager for the foreground state of application services. A single
+ * ongoing notification is shared by every service: it is updated in place
+ * with the current activity, and it is removed when no more work is active.
+ * Services declare active work with {@link #start(Service, String, String,
+ * PendingIntent)} and {@link #stop(Service, boolean)}, which may be nested.
+ * <p>
+ * The notification is owned by the main process: the command execution
+ * process reports its activity to {@link ResultService}.
+ * </p>
+ * @author Pixmob
+ */
+final class ForegroundManager {
+    public static final int NOTIFICATION_ID = 2;
+    private static ForegroundManager instance;
+    private final Context context;
+    private final NotificationManager nm;
+    private final Notification notification;
+    private final PendingIntent dashboardIntent;
+    private final String queueFormat;
+    private final Map<Service, Work> works = new HashMap<Service, Work>(2);
+    private int activeCount;
+    private int queueDepth;
+    private String shownTitle;
+    private int shownQueueDepth;
+    private String shownText;
+    private PendingIntent shownIntent;
+    
+    private ForegroundManager(final Context context) {
+        this.context = context;
+        nm = (NotificationManager) context
+                .getSystemService(Context.NOTIFICATION_SERVICE);
+        notification = new Notification(R.drawable.ic_stat_icon, null, System
+                .currentTimeMillis());
+        dashboardIntent = PendingIntent.getActivity(context, 0, new Intent(
+                context, DashboardActivity.class), 0);
+        queueFormat = context.getString(R.string.foreground_queue);
+    }
+    
+    public static synchronized ForegroundManager get(Context context) {
+        if (instance == null) {
+            instance = new ForegroundManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+    
+    /**
+     * Get the intent for opening the dashboard.
+     */
+    public PendingIntent getDashboardIntent() {
+        return dashboardIntent;
+    }
+    
+    /**
+     * Start work in a service. The service is set in the foreground.
+     * @param contentIntent intent sent when the notification is clicked, or
+     *            <code>null</code> for opening the dashboard
+     */
+    public synchronized void start(Service service, String title,
+            String text, PendingIntent contentIntent) {
+        Work work = works.get(service);
+        final boolean newService = work == null;
+        if (newService) {
+            work = new Work();
+            works.put(service, work);
+        }
+        ++work.count;
+        work.title = title;
+        work.text = text;
+        work.intent = contentIntent != null ? contentIntent : dashboardIntent;
+        
+        final boolean firstWork = ++activeCount == 1;
+        final boolean changed = updateNotification(work, firstWork);
+        if (newService) {
+            service.startForeground(NOTIFICATION_ID, notification);
+        } else if (changed) {
+            nm.notify(NOTIFICATION_ID, notification);
+        }
+    }
+    
+    /**
+     * Stop work in a service. The service leaves the foreground when it has
+     * no more active work.
+     * @param removeNotification if <code>false</code>, the notification is
+     *            kept when no more work is active in any service: the
+     *            notification is later removed with {@link #dismiss()}
+     */
+    public synchronized void stop(Service service, boolean removeNotification) {
+        final Work work = works.get(service);
+        if (work == null) {
+            return;
+        }
+        --activeCount;
+        if (--work.count > 0) {
+            return;
+        }
+        
+        works.remove(service);
+        if (activeCount == 0) {
+            service.stopForeground(removeNotification);
+            if (removeNotification) {
+                reset();
+            }
+        } else {
+            // the notification is kept for other services, and it shows
+            // their activity
+            service.stopForeground(false);
+            final Iterator<Work> i = works.values().iterator();
+            if (updateNotification(i.next(), false)) {
+                nm.notify(NOTIFICATION_ID, notification);
+            }
+        }
+    }
+    
+    /**
+     * Remove the notification if no work is active.
+     */
+    public synchronized void dismiss() {
+        if (activeCount == 0) {
+            nm.cancel(NOTIFICATION_ID);
+            reset();
+        }
+    }
+    
+    /**
+     * Set the number of pending commands, which is displayed with the
+     * current activity.
+     */
+    public synchronized void setQueueDepth(int depth) {
+        if (queueDepth == depth) {
+            return;
+        }
+        queueDepth = depth;
+        if (activeCount != 0) {
+            final Work work = works.values().iterator().next();
+            if (updateNotification(work, false)) {
+                nm.notify(NOTIFICATION_ID, notification);
+            }
+        }
+    }
+    
+    private void reset() {
+        shownTitle = null;
+        shownQueueDepth = 0;
+        shownText = null;
+        shownIntent = null;
+    }
+    
+    /**
+     * Update the notification with the current activity.
+     * @return <code>true</code> if the notification was modified
+     */
+    private boolean updateNotification(Work work, boolean ticker) {
+        // the title is only formatted when the notification is modified
+        if (!ticker && work.title.equals(shownTitle)
+                && queueDepth == shownQueueDepth && work.text.equals(shownText)
+                && work.intent == shownIntent) {
+            return false;
+        }
+        final String title = queueDepth == 0 ? work.title : String.format(
+            queueFormat, work.title, queueDepth);
+        
+        // the ticker is only displayed when the notification is shown
+        notification.tickerText = ticker ? title : null;
+        notification.setLatestEventInfo(context, title, work.text, work.intent);
+        shownTitle = work.title;
+        shownQueueDepth = queueDepth;
+        shownText = work.text;
+        shownIntent = work.intent;
+        return true;
+    }
+    
+    /**
+     * Active work in a service.
+     * @author Pixmob
+     */
+    private static class Work {
+        int count;
+        String title;
+        String text;
+        PendingIntent intent;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.DEV;
+import static com.pixmob.r2droid.Constants.TAG;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.pixmob.appengine.client.AppEngineAuthenticationException;
+import com.pixmob.appengine.client.AppEngineClient;
+import com.pixmob.r2droid.core.CircuitBreaker;
+
+/**
+ * Monitor for requests sent to the central host. Request timeouts are derived
+ * from the latency measured for each endpoint. A circuit breaker rejects
+ * requests when the central host is down: after a delay, a single request is
+ * allowed to probe the host.
+ * @author Pixmob
+ */
+final class HostMonitor {
+    private static final int SAMPLE_COUNT = 32;
+    private static final int MIN_SAMPLE_COUNT = 4;
+    private static final int DEFAULT_TIMEOUT = 15 * 1000;
+    private static final int MIN_TIMEOUT = 5 * 1000;
+    private static final int MAX_TIMEOUT = 30 * 1000;
+    private static final int MAX_CONNECT_TIMEOUT = 10 * 1000;
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long MIN_OPEN_DELAY = 30 * 1000;
+    private static final long MAX_OPEN_DELAY = 10 * 60 * 1000;
+    private static final Map<String, Latency> LATENCIES = new HashMap<String, Latency>(
+            4);
+    private static final CircuitBreaker BREAKER = new CircuitBreaker(
+            FAILURE_THRESHOLD, MIN_OPEN_DELAY, MAX_OPEN_DELAY);
+    
+    private HostMonitor() {
+    }
+    
+    /**
+     * Check if requests may be sent to the central host.
+     */
+    public static synchronized boolean isAvailable() {
+        return BREAKER.isAvailable(SystemClock.elapsedRealtime());
+    }
+    
+    /**
+     * Execute a request to the central host.
+     * @param endpoint endpoint name, used for tracking latency
+     * @throws HostUnavailableException if the central host is down
+     */
+    public static HttpResponse execute(AppEngineClient client,
+            HttpUriRequest req, String endpoint) throws IOException,
+            AppEngineAuthenticationException {
+        acquire(endpoint);
+        
+        final int timeout = getTimeout(endpoint);
+        final HttpParams params = req.getParams();
+        HttpConnectionParams.setConnectionTimeout(params, Math.min(timeout,
+            MAX_CONNECT_TIMEOUT));
+        HttpConnectionParams.setSoTimeout(params, timeout);
+        
+        final long start = SystemClock.elapsedRealtime();
+        boolean success = false;
+        long latency = -1;
+        try {
+            final HttpResponse resp = client.execute(req);
+            latency = SystemClock.elapsedRealtime() - start;
+            // server errors are failures: the host is not working
+            success = resp.getStatusLine().getStatusCode() < 500;
+            return resp;
+        } catch (AppEngineAuthenticationException e) {
+            // the host is working: the account is not authorized
+            success = true;
+            throw e;
+        } finally {
+            onResult(endpoint, success, latency);
+        }
+    }
+    
+    private static synchronized void acquire(String endpoint)
+            throws HostUnavailableException {
+        if (BREAKER.acquire(SystemClock.elapsedRealtime())) {
+            if (DEV && BREAKER.getState() == CircuitBreaker.HALF_OPEN) {
+                Log.i(TAG, "Probing central host with endpoint " + endpoint);
+            }
+            return;
+        }
+        throw new HostUnavailableException("Central host is unavailable: "
+                + "request to endpoint " + endpoint + " is rejected");
+    }
+    
+    private static synchronized void onResult(String endpoint,
+            boolean success, long latency) {
+        if (success) {
+            if (latency >= 0) {
+                Latency l = LATENCIES.get(endpoint);
+                if (l == null) {
+                    l = new Latency();
+                    LATENCIES.put(endpoint, l);
+                }
+                l.add(latency);
+            }
+            
+            if (BREAKER.getState() != CircuitBreaker.CLOSED && DEV) {
+                Log.i(TAG, "Central host is available");
+            }
+            BREAKER.onSuccess();
+        } else {
+            final long now = SystemClock.elapsedRealtime();
+            final int previousState = BREAKER.getState();
+            BREAKER.onFailure(now);
+            if (DEV && previousState != CircuitBreaker.OPEN
+                    && BREAKER.getState() == CircuitBreaker.OPEN) {
+                Log.w(TAG, "Central host is unavailable: next probe in "
+                        + (BREAKER.getOpenUntil() - now) + " ms");
+            }
+        }
+    }
+    
+    /**
+     * Get the read timeout for an endpoint, from its latency percentiles.
+     */
+    static synchronized int getTimeout(String endpoint) {
+        final Latency l = LATENCIES.get(endpoint);
+        if (l == null || l.count < MIN_SAMPLE_COUNT) {
+            return DEFAULT_TIMEOUT;
+        }
+        final long timeout = l.percentile(95) * 3;
+        return (int) Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+    }
+    
+    /**
+     * Latency samples for an endpoint.
+     * @author Pixmob
+     */
+    private static class Latency {
+        private final long[] samples = new long[SAMPLE_COUNT];
+        private final long[] sorted = new long[SAMPLE_COUNT];
+        int count;
+        private int next;
+        
+        public void add(long latency) {
+            samples[next] = latency;
+            next = (next + 1) % SAMPLE_COUNT;
+            if (count < SAMPLE_COUNT) {
+                ++count;
+            }
+        }
+        
+        public long percentile(int p) {
+            System.arraycopy(samples, 0, sorted, 0, count);
+            Arrays.sort(sorted, 0, count);
+            final int i = Math.min(count - 1, (count * p + 99) / 100 - 1);
+            return sorted[Math.max(0, i)];
+        }
+    }
+    
+    /**
+     * Error raised when a request is rejected since the central host is
+     * down.
+     * @author Pixmob
+     */
+    public static class HostUnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        public HostUnavailableException(final String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.DEV;
+import static com.pixmob.r2droid.Constants.TAG;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Service accepting commands from the local network. Commands are sent over
+ * a TCP connection, as text lines. Connections from addresses which are not
+ * local (site-local, link-local or loopback) are rejected.
+ * <p>
+ * The token found in the application preferences is never sent: the server
+ * first sends <code>CHALLENGE &lt;nonce&gt;</code>, with a random nonce for
+ * each connection. The first client line must be
+ * <code>AUTH &lt;hmac&gt;</code>, where <code>hmac</code> is the HMAC-SHA256
+ * of the nonce, keyed with the token, as an hexadecimal string. Every next
+ * line is a command, which is executed by {@link CommandExecutorService}.
+ * The token is read for each connection: a new token is used right away.
+ * Each line is answered with <code>OK</code> or
+ * <code>ERR &lt;reason&gt;</code>. A connection is kept alive until the
+ * client closes it, or until it is idle for a while.
+ * </p>
+ * <p>
+ * Every connection is handled by a single thread, using a selector.
+ * </p>
+ * @author Pixmob
+ */
+public class LocalCommandService extends Service implements Runnable {
+    public static final int PORT = 8217;
+    private static final int MAX_CONNECTIONS = 4;
+    private static final int MAX_LINE_LENGTH = 1024;
+    private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+    private static final long IDLE_CHECK_INTERVAL = 30 * 1000;
+    private static final int NONCE_LENGTH = 16;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] OK = { 'O', 'K', '\n' };
+    private volatile boolean running;
+    private Thread serverThread;
+    private Selector selector;
+    private int connectionCount;
+    
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+    
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (!Preferences.isLocalServerEnabled(getApplicationContext())) {
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        if (serverThread == null) {
+            // the port is only bound when the server is enabled
+            running = true;
+            serverThread = new Thread(this, "R2droid Local Commands");
+            serverThread.start();
+        }
+        return START_STICKY;
+    }
+    
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        running = false;
+        final Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+        serverThread = null;
+    }
+    
+    @Override
+    public void run() {
+        ServerSocketChannel server = null;
+        try {
+            selector = Selector.open();
+            server = ServerSocketChannel.open();
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(PORT));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            if (DEV) {
+                Log.i(TAG, "Accepting local commands on port " + PORT);
+            }
+            
+            long lastIdleCheck = SystemClock.elapsedRealtime();
+            while (running) {
+                selector.select(IDLE_CHECK_INTERVAL);
+                final Iterator<SelectionKey> i = selector.selectedKeys()
+                        .iterator();
+                while (i.hasNext()) {
+                    final SelectionKey key = i.next();
+                    i.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(server);
+                    } else {
+                        final Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                conn.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.write();
+                            }
+                        } catch (IOException e) {
+                            if (DEV) {
+                                Log.d(TAG, "Local connection error", e);
+                            }
+                            close(key);
+                        }
+                    }
+                }
+                
+                final long now = SystemClock.elapsedRealtime();
+                if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+                    closeIdleConnections(now);
+                    lastIdleCheck = now;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Local command server error", e);
+        } finally {
+            if (selector != null) {
+                for (final SelectionKey key : selector.keys()) {
+                    closeQuietly(key);
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignore) {
+                }
+            }
+            if (server != null) {
+                try {
+                    server.close();
+                } catch (IOException ignore) {
+                }
+            }
+            if (DEV) {
+                Log.i(TAG, "Local command server stopped");
+            }
+        }
+    }
+    
+    private void accept(ServerSocketChannel server) throws IOException {
+        final SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        final InetAddress peer = channel.socket().getInetAddress();
+        if (!isLocalAddress(peer)) {
+            Log.w(TAG, "Rejecting local connection from remote address "
+                    + peer);
+            channel.close();
+            return;
+        }
+        if (connectionCount >= MAX_CONNECTIONS) {
+            if (DEV) {
+                Log.w(TAG, "Too many local connections: rejecting "
+                        + channel.socket().getInetAddress());
+            }
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        final SelectionKey key = channel.register(selector,
+            SelectionKey.OP_READ);
+        final Connection conn = new Connection(key);
+        key.attach(conn);
+        ++connectionCount;
+        if (DEV) {
+            Log.d(TAG, "Local connection from " + peer);
+        }
+        conn.write();
+    }
+    
+    /**
+     * Check if an address belongs to the local network.
+     */
+    private static boolean isLocalAddress(InetAddress address) {
+        return address.isSiteLocalAddress() || address.isLinkLocalAddress()
+                || address.isLoopbackAddress();
+    }
+    
+    private void closeIdleConnections(long now) {
+        for (final SelectionKey key : selector.keys()) {
+            final Object conn = key.attachment();
+            if (conn instanceof Connection
+                    && now - ((Connection) conn).lastActivity >= IDLE_TIMEOUT) {
+                if (DEV) {
+                    Log.d(TAG, "Closing idle local connection");
+                }
+                close(key);
+            }
+        }
+    }
+    
+    private void close(SelectionKey key) {
+        if (key.isValid() && key.attachment() instanceof Connection) {
+            --connectionCount;
+        }
+        closeQuietly(key);
+    }
+    
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignore) {
+        }
+    }
+    
+    /**
+     * Check if a challenge response is valid. The comparison time does not
+     * depend on the number of matching characters.
+     */
+    private static boolean isResponseValid(String token, String nonce,
+            String candidate) {
+        final String expected = sign(token, nonce);
+        if (expected == null || candidate.length() != expected.length()) {
+            return false;
+        }
+        int diff = 0;
+        for (int i = 0; i < expected.length(); ++i) {
+            diff |= expected.charAt(i) ^ candidate.charAt(i);
+        }
+        return diff == 0;
+    }
+    
+    /**
+     * Compute the response to a challenge.
+     * @return HMAC of the nonce as an hexadecimal string, or
+     *         <code>null</code> if there is no token
+     */
+    private static String sign(String token, String nonce) {
+        if (token == null) {
+            return null;
+        }
+        final byte[] hmac;
+        try {
+            final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(token.getBytes("UTF-8"),
+                    HMAC_ALGORITHM));
+            hmac = mac.doFinal(nonce.getBytes("US-ASCII"));
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Cannot compute local authentication response", e);
+            return null;
+        } catch (IOException e) {
+            // UTF-8 and US-ASCII are always supported
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder buf = new StringBuilder(hmac.length * 2);
+        for (final byte b : hmac) {
+            buf.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+                Character.forDigit(b & 0xf, 16));
+        }
+        return buf.toString();
+    }
+    
+    /**
+     * Connection state.
+     * @author Pixmob
+     */
+    private class Connection {
+        private final SelectionKey key;
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocate(MAX_LINE_LENGTH);
+        private final ByteBuffer out = ByteBuffer.allocate(256);
+        private final String nonce = Preferences.newRandomId(NONCE_LENGTH);
+        private final String token = Preferences
+                .getLocalServerToken(getApplicationContext());
+        private boolean authenticated;
+        private boolean closing;
+        long lastActivity = SystemClock.elapsedRealtime();
+        
+        public Connection(final SelectionKey key) {
+            this.key = key;
+            this.channel = (SocketChannel) key.channel();
+            out.put(UTF8.encode("CHALLENGE " + nonce + "\n"));
+        }
+        
+        public void read() throws IOException {
+            if (channel.read(in) == -1) {
+                close(key);
+                return;
+            }
+            lastActivity = SystemClock.elapsedRealtime();
+            
+            in.flip();
+            int lineStart = 0;
+            for (int i = in.position(); i < in.limit() && !closing; ++i) {
+                if (in.get(i) == '\n') {
+                    int lineEnd = i;
+                    if (lineEnd > lineStart && in.get(lineEnd - 1) == '\r') {
+                        --lineEnd;
+                    }
+                    onLine(new String(in.array(), lineStart, lineEnd
+                            - lineStart, "UTF-8"));
+                    lineStart = i + 1;
+                }
+            }
+            in.position(lineStart);
+            in.compact();
+            if (!in.hasRemaining() && !closing) {
+                reply("ERR line too long");
+                closing = true;
+            }
+            write();
+        }
+        
+        private void onLine(String line) {
+            if (!authenticated) {
+                if (line.startsWith("AUTH ")
+                        && isResponseValid(token, nonce, line
+                                .substring("AUTH ".length()))) {
+                    authenticated = true;
+                    reply(null);
+                } else {
+                    if (DEV) {
+                        Log.w(TAG, "Local authentication failed from "
+                                + channel.socket().getInetAddress());
+                    }
+                    reply("ERR authentication failed");
+                    closing = true;
+                }
+                return;
+            }
+            
+            if (line.length() == 0 || "PING".equals(line)) {
+                reply(null);
+                return;
+            }
+            if (DEV) {
+                Log.i(TAG, "Got local command: " + line);
+            }
+            CommandExecutorService.execute(LocalCommandService.this, line);
+            reply(null);
+        }
+        
+        private void reply(String error) {
+            final ByteBuffer data = error == null ? ByteBuffer.wrap(OK) : UTF8
+                    .encode(error + "\n");
+            if (out.remaining() < data.remaining()) {
+                // the client does not read replies: the connection is closed
+                closing = true;
+                return;
+            }
+            out.put(data);
+        }
+        
+        public void write() throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            if (out.position() != 0) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else if (closing) {
+                close(key);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+}
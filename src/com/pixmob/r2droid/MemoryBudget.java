@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.DEV;
+import static com.pixmob.r2droid.Constants.TAG;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Memory budget for warm resources, such as text-to-speech engines or HTTP
+ * connections. Resources are kept between commands so that the application
+ * stays responsive: each resource is registered with an estimate of the
+ * memory it holds, and it is trimmed when the budget is exceeded or when the
+ * system is running low on memory. Resources with a lower priority are
+ * trimmed first.
+ * <p>
+ * There is a registry per process, with its own budget: the main process
+ * keeps HTTP connections, while the command execution process keeps
+ * text-to-speech voices and a speech player.
+ * </p>
+ * @author Pixmob
+ */
+final class MemoryBudget {
+    /**
+     * Priority for resources which are cheap to restore.
+     */
+    public static final int PRIORITY_LOW = 0;
+    /**
+     * Priority for resources which are slow to restore.
+     */
+    public static final int PRIORITY_HIGH = 1;
+    /**
+     * Budget for the main process: a full connection pool exceeds it.
+     */
+    private static final long MAX_RESIDENT_BYTES = 128 * 1024;
+    /**
+     * Budget for the command execution process: two voices, and a prepared
+     * speech player.
+     */
+    private static final long MAX_EXEC_RESIDENT_BYTES = 576 * 1024;
+    private static final List<Entry> entries = new ArrayList<Entry>(4);
+    
+    private MemoryBudget() {
+    }
+    
+    /**
+     * Register a resource.
+     * @param name resource name, for logging
+     * @param priority resource priority (see <code>PRIORITY_*</code>
+     *            constants)
+     */
+    public static void register(String name, Resource resource, int priority) {
+        synchronized (entries) {
+            int i = 0;
+            while (i < entries.size() && entries.get(i).priority <= priority) {
+                ++i;
+            }
+            entries.add(i, new Entry(name, resource, priority));
+        }
+        checkBudget();
+    }
+    
+    /**
+     * Unregister a resource.
+     */
+    public static void unregister(Resource resource) {
+        synchronized (entries) {
+            for (int i = 0; i < entries.size(); ++i) {
+                if (entries.get(i).resource == resource) {
+                    entries.remove(i);
+                    return;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get an estimate of the memory held by registered resources, in bytes.
+     */
+    public static long getResidentBytes() {
+        long residentBytes = 0;
+        for (final Entry entry : getEntries()) {
+            residentBytes += entry.resource.getResidentBytes();
+        }
+        return residentBytes;
+    }
+    
+    /**
+     * Trim resources if the budget is exceeded. This method is called by a
+     * resource when it grows.
+     */
+    public static void checkBudget() {
+        trim(getMaxResidentBytes(), PRIORITY_HIGH);
+    }
+    
+    /**
+     * Trim resources when the system is running low on memory. Low-priority
+     * resources are trimmed first: high-priority resources are only trimmed
+     * if they still hold more than half of the budget.
+     */
+    public static void onLowMemory() {
+        final long residentBytes = getResidentBytes();
+        trim(0, PRIORITY_LOW);
+        trim(getMaxResidentBytes() / 2, PRIORITY_HIGH);
+        Log.i(TAG, "Low memory: resources trimmed from " + residentBytes
+                + " to " + getResidentBytes() + " bytes");
+    }
+    
+    private static long getMaxResidentBytes() {
+        return R2droidApplication.isExecProcess() ? MAX_EXEC_RESIDENT_BYTES
+                : MAX_RESIDENT_BYTES;
+    }
+    
+    private static Entry[] getEntries() {
+        synchronized (entries) {
+            return entries.toArray(new Entry[entries.size()]);
+        }
+    }
+    
+    private static void trim(long maxBytes, int maxPriority) {
+        // resources are trimmed out of the registry lock: a resource may
+        // register or unregister other resources while it is trimmed
+        final Entry[] snapshot = getEntries();
+        long residentBytes = 0;
+        for (final Entry entry : snapshot) {
+            residentBytes += entry.resource.getResidentBytes();
+        }
+        for (int i = 0; i < snapshot.length && residentBytes > maxBytes
+                && snapshot[i].priority <= maxPriority; ++i) {
+            final Resource resource = snapshot[i].resource;
+            final long bytesBefore = resource.getResidentBytes();
+            if (bytesBefore == 0) {
+                continue;
+            }
+            resource.trim(residentBytes - maxBytes);
+            final long bytesAfter = resource.getResidentBytes();
+            residentBytes -= bytesBefore - bytesAfter;
+            if (DEV) {
+                Log.d(TAG, "Trimmed " + snapshot[i].name + ": " + bytesBefore
+                        + " -> " + bytesAfter + " bytes");
+            }
+        }
+    }
+    
+    /**
+     * Resource holding memory.
+     * @author Pixmob
+     */
+    public interface Resource {
+        /**
+         * Get an estimate of the memory held by this resource, in bytes.
+         */
+        long getResidentBytes();
+        
+        /**
+         * Release memory held by this resource. Parts of this resource which
+         * are in use may be kept.
+         * @param bytes memory to release, in bytes: a resource may release
+         *            more or less than this amount
+         */
+        void trim(long bytes);
+    }
+    
+    /**
+     * Registered resource.
+     * @author Pixmob
+     */
+    private static class Entry {
+        final String name;
+        final Resource resource;
+        final int priority;
+        
+        public Entry(final String name, final Resource resource,
+                final int priority) {
+            this.name = name;
+            this.resource = resource;
+            this.priority = priority;
+        }
+    }
+}
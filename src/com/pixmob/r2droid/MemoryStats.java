@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.TAG;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Memory usage of the current process. The proportional set size (PSS) is
+ * reported: this is the resident memory of the process, where pages shared
+ * with other processes are divided among these processes.
+ * @author Pixmob
+ */
+final class MemoryStats {
+    private MemoryStats() {
+    }
+    
+    /**
+     * Log the memory usage of the current process.
+     * @param event event name, such as <code>idle</code>
+     */
+    public static void log(String event) {
+        final Debug.MemoryInfo mem = new Debug.MemoryInfo();
+        Debug.getMemoryInfo(mem);
+        // this line is always logged: memory regressions are detected from
+        // release builds
+        Log.i(TAG, "Memory for process " + R2droidApplication.getProcessName()
+                + " (" + event + "): total " + mem.getTotalPss()
+                + " kB, Dalvik " + mem.dalvikPss + " kB, native "
+                + mem.nativePss + " kB, warm resources "
+                + MemoryBudget.getResidentBytes() / 1024 + " kB");
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.DEV;
+import static com.pixmob.r2droid.Constants.TAG;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import com.pixmob.r2droid.core.Backoff;
+
+/**
+ * Scheduler for deferrable network work. Non-urgent requests are held until
+ * the network is cheap to use: the radio is already active, the device is
+ * connected to a Wi-Fi network, or the device is charging. Deferred work is
+ * executed when a maximum delay is reached, and it is sent along with urgent
+ * requests.
+ * <p>
+ * Deferred work is identified by a {@link DeviceRegistrationService} action.
+ * Deadlines are stored with the wall clock time, so that they are still valid
+ * after a reboot: the deadline alarm is set again by {@link BootReceiver}.
+ * </p>
+ * <p>
+ * Failed work is retried after an exponential backoff delay, whatever the
+ * network conditions, and it is abandoned after {@link #MAX_RETRIES}
+ * failures: see {@link #retry(Context, String)}.
+ * </p>
+ * @author Pixmob
+ */
+final class NetworkScheduler {
+    /**
+     * Time while the cellular radio is considered as active after a network
+     * request.
+     */
+    private static final long RADIO_TAIL_TIME = 10 * 1000;
+    /**
+     * Delay for batching work when the network is cheap.
+     */
+    private static final long BATCH_WINDOW = 60 * 1000;
+    /**
+     * Number of retries before failed work is abandoned.
+     */
+    public static final int MAX_RETRIES = 8;
+    private static final long MIN_RETRY_DELAY = 60 * 1000;
+    private static final long MAX_RETRY_DELAY = 2 * 60 * 60 * 1000;
+    private static final int DEADLINE_REQUEST = 0;
+    private static final int BATCH_REQUEST = 1;
+    private static final String PREFS_NAME = "scheduler";
+    private static final Object LOCK = new Object();
+    private static volatile long lastNetworkUse;
+    /**
+     * Retry state for failed work. Failures are counted while the process is
+     * running.
+     */
+    private static final Map<String, Retry> retries = new HashMap<String, Retry>(
+            2);
+    
+    private NetworkScheduler() {
+    }
+    
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+    
+    /**
+     * Schedule deferrable work.
+     * @param action {@link DeviceRegistrationService} action to execute
+     * @param maxDelay maximum delay in milliseconds before the work is
+     *            executed
+     */
+    public static void schedule(Context context, String action, long maxDelay) {
+        final long deadline = System.currentTimeMillis() + maxDelay;
+        synchronized (LOCK) {
+            final SharedPreferences prefs = getPrefs(context);
+            final long currentDeadline = prefs.getLong(action, Long.MAX_VALUE);
+            if (currentDeadline <= deadline) {
+                // this work is already scheduled
+                return;
+            }
+            prefs.edit().putLong(action, deadline).commit();
+        }
+        if (DEV) {
+            Log.d(TAG, "Deferred network work: " + action + " (max delay: "
+                    + maxDelay + " ms)");
+        }
+        
+        setDeadlineAlarm(context);
+        if (isNetworkCheap(context)) {
+            final AlarmManager am = (AlarmManager) context
+                    .getSystemService(Context.ALARM_SERVICE);
+            final long batchTime = SystemClock.elapsedRealtime() + BATCH_WINDOW;
+            am.set(AlarmManager.ELAPSED_REALTIME, batchTime, getRunIntent(
+                context, BATCH_REQUEST));
+        }
+    }
+    
+    /**
+     * Set the alarm for the next deadline of deferred work. Alarms are lost
+     * when the device is rebooted: this method is called by
+     * {@link BootReceiver}. A deadline which was reached while the device was
+     * off is executed right away.
+     */
+    public static void setDeadlineAlarm(Context context) {
+        long nextDeadline = Long.MAX_VALUE;
+        synchronized (LOCK) {
+            for (final Object value : getPrefs(context).getAll().values()) {
+                nextDeadline = Math.min(nextDeadline, (Long) value);
+            }
+        }
+        if (nextDeadline == Long.MAX_VALUE) {
+            return;
+        }
+        final AlarmManager am = (AlarmManager) context
+                .getSystemService(Context.ALARM_SERVICE);
+        am.set(AlarmManager.RTC_WAKEUP, nextDeadline, getRunIntent(context,
+            DEADLINE_REQUEST));
+        setConditionsReceiverEnabled(context, true);
+    }
+    
+    /**
+     * Retry failed work. The work is executed again after a backoff delay,
+     * which is doubled after each failure.
+     * @param action {@link DeviceRegistrationService} action to execute
+     * @return <code>false</code> if this work failed too many times: it is
+     *         not retried
+     */
+    public static boolean retry(Context context, String action) {
+        final long delay;
+        synchronized (LOCK) {
+            Retry retry = retries.get(action);
+            if (retry == null) {
+                retry = new Retry();
+                retries.put(action, retry);
+            }
+            if (++retry.failures > MAX_RETRIES) {
+                retries.remove(action);
+                return false;
+            }
+            delay = retry.backoff.next();
+        }
+        if (DEV) {
+            Log.d(TAG, "Retrying deferred work in " + delay + " ms: "
+                    + action);
+        }
+        
+        // the retry is not a wake-up alarm: it is executed when the device
+        // is awake
+        final AlarmManager am = (AlarmManager) context
+                .getSystemService(Context.ALARM_SERVICE);
+        am.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime()
+                + delay, PendingIntent.getService(context, 0,
+                    DeviceRegistrationService.newIntent(context, action), 0));
+        return true;
+    }
+    
+    /**
+     * Reset the retry state of some work, once it succeeded.
+     */
+    public static void onSuccess(String action) {
+        synchronized (LOCK) {
+            retries.remove(action);
+        }
+    }
+    
+    /**
+     * Notify this scheduler that an urgent network request was just sent.
+     * Deferred work is executed since the radio is active.
+     */
+    public static void onNetworkUsed(Context context) {
+        lastNetworkUse = SystemClock.elapsedRealtime();
+        runIfPending(context);
+    }
+    
+    /**
+     * Execute deferred work if the network is cheap.
+     */
+    static void onConditionsChanged(Context context) {
+        if (isNetworkCheap(context)) {
+            runIfPending(context);
+        }
+    }
+    
+    private static void runIfPending(Context context) {
+        final boolean pending;
+        synchronized (LOCK) {
+            pending = !getPrefs(context).getAll().isEmpty();
+        }
+        if (pending) {
+            context.startService(DeviceRegistrationService.newIntent(context,
+                    DeviceRegistrationService.ACTION_RUN_DEFERRED));
+        }
+    }
+    
+    /**
+     * Remove every deferred work.
+     * @return actions to execute
+     */
+    public static List<String> takeAll(Context context) {
+        final List<String> actions;
+        synchronized (LOCK) {
+            final SharedPreferences prefs = getPrefs(context);
+            final Map<String, ?> work = prefs.getAll();
+            actions = new ArrayList<String>(work.keySet());
+            prefs.edit().clear().commit();
+        }
+        
+        final AlarmManager am = (AlarmManager) context
+                .getSystemService(Context.ALARM_SERVICE);
+        am.cancel(getRunIntent(context, DEADLINE_REQUEST));
+        am.cancel(getRunIntent(context, BATCH_REQUEST));
+        setConditionsReceiverEnabled(context, false);
+        return actions;
+    }
+    
+    /**
+     * Check if network requests are cheap right now.
+     */
+    public static boolean isNetworkCheap(Context context) {
+        if (SystemClock.elapsedRealtime() - lastNetworkUse < RADIO_TAIL_TIME) {
+            return true;
+        }
+        
+        final ConnectivityManager cm = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        final NetworkInfo network = cm.getActiveNetworkInfo();
+        if (network == null || !network.isConnected()) {
+            return false;
+        }
+        if (network.getType() == ConnectivityManager.TYPE_WIFI) {
+            return true;
+        }
+        
+        final Intent battery = context.registerReceiver(null,
+            new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null
+                && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+            return true;
+        }
+        
+        final TelephonyManager tm = (TelephonyManager) context
+                .getSystemService(Context.TELEPHONY_SERVICE);
+        final int dataActivity = tm.getDataActivity();
+        return dataActivity != TelephonyManager.DATA_ACTIVITY_NONE
+                && dataActivity != TelephonyManager.DATA_ACTIVITY_DORMANT;
+    }
+    
+    private static PendingIntent getRunIntent(Context context, int requestCode) {
+        return PendingIntent.getService(context, requestCode,
+            DeviceRegistrationService.newIntent(context,
+                DeviceRegistrationService.ACTION_RUN_DEFERRED), 0);
+    }
+    
+    /**
+     * The network conditions receiver is only enabled when some work is
+     * deferred: the application is not started on every network change.
+     */
+    private static void setConditionsReceiverEnabled(Context context,
+            boolean enabled) {
+        final int state = enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                : PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
+        context.getPackageManager().setComponentEnabledSetting(
+            new ComponentName(context, NetworkConditionsReceiver.class), state,
+            PackageManager.DONT_KILL_APP);
+    }
+    
+    /**
+     * Retry state for failed work.
+     * @author Pixmob
+     */
+    private static class Retry {
+        final Backoff backoff = new Backoff(MIN_RETRY_DELAY, MAX_RETRY_DELAY);
+        int failures;
+    }
+}
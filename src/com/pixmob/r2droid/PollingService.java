@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.DEV;
+import static com.pixmob.r2droid.Constants.TAG;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.http.AndroidHttpClient;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.pixmob.appengine.client.AppEngineAuthenticationException;
+import com.pixmob.appengine.client.AppEngineClient;
+import com.pixmob.r2droid.core.Backoff;
+import com.pixmob.r2droid.core.HeartbeatPolicy;
+import com.pixmob.r2droid.core.Urls;
+
+/**
+ * Service receiving push messages with a persistent connection to the
+ * central host. The central host holds each poll request until a message is
+ * available, or until the heartbeat interval is elapsed: the host then
+ * answers with no content (status code 204), and a new request is sent.
+ * <p>
+ * The heartbeat interval is adapted to the network (see
+ * {@link HeartbeatPolicy}): a poll request without an answer means the
+ * connection was dropped while it was idle. The poll URL is set with the
+ * resource <code>poll_url</code>, which may target a local server while
+ * developing.
+ * </p>
+ * <p>
+ * The device may sleep while a poll request is pending, or while the next
+ * attempt is delayed after an error: socket timeouts are not reliable then.
+ * A wakeup alarm is set for the end of each wait, which aborts a poll
+ * request without answer and sends the next one.
+ * </p>
+ * @author Pixmob
+ */
+public class PollingService extends Service implements Runnable {
+    private static final int HTTP_SC_OK = 200;
+    private static final int HTTP_SC_NO_CONTENT = 204;
+    /**
+     * Delay added to the heartbeat interval before a poll request is
+     * considered as dropped.
+     */
+    private static final int GRACE_PERIOD = 30 * 1000;
+    private static final int CONNECT_TIMEOUT = 20 * 1000;
+    private static final long MIN_RETRY_DELAY = 5 * 1000;
+    private static final long MAX_RETRY_DELAY = 5 * 60 * 1000;
+    private static final long PROCESSING_WAKE_TIME = 10 * 1000;
+    private static final String PREFS_NAME = "polling";
+    private static final String ACTION_WAKEUP = "com.pixmob.r2droid.intent.action.POLL_WAKEUP";
+    private final Object wakeupLock = new Object();
+    private boolean wakeup;
+    private volatile boolean running;
+    private volatile HttpGet currentRequest;
+    private volatile long requestDeadline;
+    private volatile boolean requestTimedOut;
+    private Thread pollThread;
+    private AndroidHttpClient httpClient;
+    private AppEngineClient gaeClient;
+    private WakeLock wakeLock;
+    
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+    
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        httpClient = AndroidHttpClient.newInstance(
+            getString(R.string.http_user_agent), this);
+        gaeClient = new AppEngineClient(this, getString(R.string.central_host),
+                httpClient);
+        final PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
+        wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+            "R2droid Polling");
+        wakeLock.setReferenceCounted(false);
+        
+        running = true;
+        pollThread = new Thread(this, "R2droid Polling");
+        pollThread.start();
+    }
+    
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (PushTransports.get(this).getRegistrationId(this) == null) {
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        if (intent != null && ACTION_WAKEUP.equals(intent.getAction())) {
+            onWakeup();
+        }
+        return START_STICKY;
+    }
+    
+    private void onWakeup() {
+        // keep the device awake until the next poll request is sent
+        wakeLock.acquire(PROCESSING_WAKE_TIME);
+        
+        final HttpGet req = currentRequest;
+        if (req != null
+                && SystemClock.elapsedRealtime() >= requestDeadline) {
+            // no answer after the heartbeat interval
+            requestTimedOut = true;
+            req.abort();
+        }
+        synchronized (wakeupLock) {
+            wakeup = true;
+            wakeupLock.notifyAll();
+        }
+    }
+    
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        running = false;
+        final HttpGet req = currentRequest;
+        if (req != null) {
+            req.abort();
+        }
+        pollThread.interrupt();
+        pollThread = null;
+        cancelWakeup();
+    }
+    
+    @Override
+    public void run() {
+        final Context context = getApplicationContext();
+        final Backoff retryDelay = new Backoff(MIN_RETRY_DELAY,
+                MAX_RETRY_DELAY);
+        try {
+            while (running) {
+                final String regId = PushTransports.get(context)
+                        .getRegistrationId(context);
+                final String account = Preferences.getAccount(context);
+                if (regId == null || account == null) {
+                    if (DEV) {
+                        Log.i(TAG, "Device is not registered: polling stopped");
+                    }
+                    stopSelf();
+                    break;
+                }
+                gaeClient.setAccount(account);
+                
+                final String network = getNetworkName();
+                boolean success = false;
+                if (network != null) {
+                    final HeartbeatPolicy policy = loadPolicy(network);
+                    success = poll(regId, policy);
+                    savePolicy(network, policy);
+                } else if (DEV) {
+                    Log.d(TAG, "No network: polling delayed");
+                }
+                
+                if (success) {
+                    retryDelay.reset();
+                } else if (running) {
+                    waitForWakeup(retryDelay.next());
+                }
+            }
+        } catch (InterruptedException e) {
+            // the service is stopped
+        } finally {
+            wakeLock.release();
+            gaeClient.close();
+            httpClient.close();
+        }
+    }
+    
+    /**
+     * Send a poll request, and dispatch received messages.
+     * @return <code>true</code> if the next poll request should be sent
+     *         immediately
+     */
+    private boolean poll(String regId, HeartbeatPolicy policy) {
+        final long heartbeat = policy.getInterval();
+        final String url = getString(R.string.poll_url) + "?regid="
+                + Urls.encode(regId) + "&timeout=" + heartbeat / 1000;
+        final HttpGet req = new HttpGet(url);
+        HttpConnectionParams.setConnectionTimeout(req.getParams(),
+            CONNECT_TIMEOUT);
+        final long timeout = heartbeat + GRACE_PERIOD;
+        HttpConnectionParams.setSoTimeout(req.getParams(), (int) timeout);
+        
+        requestDeadline = SystemClock.elapsedRealtime() + timeout;
+        requestTimedOut = false;
+        currentRequest = req;
+        setWakeup(timeout);
+        try {
+            final HttpResponse resp = gaeClient.execute(req);
+            // the device may sleep while waiting for the next poll request
+            wakeLock.acquire(PROCESSING_WAKE_TIME);
+            NetworkScheduler.onNetworkUsed(this);
+            
+            final int statusCode = resp.getStatusLine().getStatusCode();
+            final String body = resp.getEntity() == null ? null : EntityUtils
+                    .toString(resp.getEntity(), "UTF-8");
+            if (statusCode == HTTP_SC_NO_CONTENT) {
+                // the connection was kept alive for the heartbeat interval
+                policy.onSuccess(heartbeat);
+                return true;
+            }
+            if (statusCode == HTTP_SC_OK && body != null) {
+                dispatch(body);
+                return true;
+            }
+            if (DEV) {
+                Log.w(TAG, "Poll request failed: statusCode=" + statusCode);
+            }
+        } catch (SocketTimeoutException e) {
+            return onConnectionDropped(policy, heartbeat);
+        } catch (AppEngineAuthenticationException e) {
+            if (DEV) {
+                Log.w(TAG, "Authentication error", e);
+            }
+        } catch (IOException e) {
+            if (requestTimedOut) {
+                // the request was aborted by the wakeup alarm
+                return onConnectionDropped(policy, heartbeat);
+            }
+            if (DEV && running) {
+                Log.w(TAG, "Network error", e);
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Invalid poll response", e);
+        } finally {
+            currentRequest = null;
+        }
+        return false;
+    }
+    
+    /**
+     * No answer after the heartbeat interval: the connection was dropped while
+     * it was idle.
+     * @return <code>true</code> since the next poll request should be sent
+     *         immediately
+     */
+    private boolean onConnectionDropped(HeartbeatPolicy policy,
+            long heartbeat) {
+        if (DEV) {
+            Log.i(TAG, "Connection dropped after " + heartbeat
+                    + " ms: heartbeat interval is shortened");
+        }
+        policy.onTimeout(heartbeat);
+        return true;
+    }
+    
+    /**
+     * Wait until the wakeup alarm goes off. The device may sleep meanwhile.
+     */
+    private void waitForWakeup(long delay) throws InterruptedException {
+        synchronized (wakeupLock) {
+            wakeup = false;
+            setWakeup(delay);
+            final long end = SystemClock.elapsedRealtime() + delay;
+            long remaining = delay;
+            while (running && !wakeup && remaining > 0) {
+                wakeupLock.wait(remaining);
+                remaining = end - SystemClock.elapsedRealtime();
+            }
+        }
+    }
+    
+    private void setWakeup(long delay) {
+        final AlarmManager am = (AlarmManager) getSystemService(ALARM_SERVICE);
+        am.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+            SystemClock.elapsedRealtime() + delay, getWakeupIntent());
+    }
+    
+    private void cancelWakeup() {
+        final AlarmManager am = (AlarmManager) getSystemService(ALARM_SERVICE);
+        am.cancel(getWakeupIntent());
+    }
+    
+    private PendingIntent getWakeupIntent() {
+        return PendingIntent.getService(this, 0, new Intent(ACTION_WAKEUP,
+                null, this, PollingService.class), 0);
+    }
+    
+    private void dispatch(String body) throws JSONException {
+        final JSONArray messages = new JSONObject(body)
+                .optJSONArray("messages");
+        if (messages == null) {
+            return;
+        }
+        final PushDispatcher dispatcher = PushDispatcher.get(this);
+        for (int i = 0; i < messages.length(); ++i) {
+            final JSONObject msg = messages.getJSONObject(i);
+            dispatcher.dispatch(msg.optString("seq", null), msg.optString(
+                "type", null), msg.optString("c", null), msg.optString(
+                "command", null));
+        }
+    }
+    
+    /**
+     * Get the name of the active network: heartbeat intervals are stored for
+     * each network type.
+     * @return network name, or <code>null</code> if there is no network
+     */
+    private String getNetworkName() {
+        final ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        final NetworkInfo network = cm.getActiveNetworkInfo();
+        if (network == null || !network.isConnected()) {
+            return null;
+        }
+        return network.getType() == ConnectivityManager.TYPE_WIFI ? "wifi"
+                : "mobile";
+    }
+    
+    private SharedPreferences getPrefs() {
+        return getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+    }
+    
+    private HeartbeatPolicy loadPolicy(String network) {
+        return HeartbeatPolicy.decode(getPrefs().getString(network, null));
+    }
+    
+    private void savePolicy(String network, HeartbeatPolicy policy) {
+        getPrefs().edit().putString(network, policy.encode()).commit();
+    }
+}
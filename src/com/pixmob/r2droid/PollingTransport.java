@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Push transport using a persistent connection to the central host. Messages
+ * are received by {@link PollingService}. The registration id is generated by
+ * this device.
+ * @author Pixmob
+ */
+class PollingTransport implements PushTransport {
+    private static final String ID_PREFIX = "poll:";
+    
+    @Override
+    public boolean register(Context context) {
+        String regId = getRegistrationId(context);
+        if (regId == null) {
+            regId = ID_PREFIX + Preferences.newRandomId(16);
+            Preferences.setRegistrationId(context, regId);
+        }
+        context.startService(new Intent(context, PollingService.class));
+        context.startService(DeviceRegistrationService.newIntent(context,
+                DeviceRegistrationService.ACTION_C2DM_REGISTERED));
+        return true;
+    }
+    
+    @Override
+    public boolean unregister(Context context) {
+        context.stopService(new Intent(context, PollingService.class));
+        context.startService(DeviceRegistrationService.newIntent(context,
+                DeviceRegistrationService.ACTION_C2DM_UNREGISTERED));
+        return true;
+    }
+    
+    @Override
+    public void resume(Context context) {
+        if (getRegistrationId(context) != null) {
+            context.startService(new Intent(context, PollingService.class));
+        }
+    }
+    
+    @Override
+    public String getRegistrationId(Context context) {
+        final String regId = Preferences.getRegistrationId(context);
+        return regId != null && regId.startsWith(ID_PREFIX) ? regId : null;
+    }
+}
@@ -15,8 +15,17 @@
  */
 package com.pixmob.r2droid;
 
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import com.pixmob.r2droid.core.MessageWindow;
 
 /**
  * Application preferences.
@@ -24,8 +33,13 @@ import android.content.SharedPreferences;
  */
 final class Preferences {
     private static final String ACCOUNT_PREF = "account";
+    private static final String ACCOUNTS_PREF = "accounts";
     private static final String REG_ID_PREF = "regId";
     private static final String ONLINE_PREF = "online";
+    private static final String COMMAND_CURSOR_PREF = "commandCursor";
+    private static final String MESSAGE_WINDOW_PREF = "messageWindow";
+    private static final String LOCAL_SERVER_PREF = "localServer";
+    private static final String LOCAL_SERVER_TOKEN_PREF = "localServerToken";
     
     private Preferences() {
     }
@@ -34,20 +48,84 @@ final class Preferences {
         return context.getSharedPreferences("r2droid", Context.MODE_PRIVATE);
     }
     
+    /**
+     * Get the primary account, which is the first registered account. This
+     * account is used for requests which are not specific to an account.
+     */
     public static String getAccount(Context context) {
-        return getPrefs(context).getString(ACCOUNT_PREF, null);
+        final List<String> accounts = getAccounts(context);
+        return accounts.isEmpty() ? null : accounts.get(0);
     }
     
+    /**
+     * Set a single account, replacing any other account.
+     */
     public static void setAccount(Context context, String account) {
-        getPrefs(context).edit().putString(ACCOUNT_PREF, account).commit();
+        final List<String> accounts = account == null ? Collections
+                .<String> emptyList() : Collections.singletonList(account);
+        setAccounts(context, accounts);
+    }
+    
+    /**
+     * Get accounts this device is registered with.
+     */
+    public static List<String> getAccounts(Context context) {
+        final SharedPreferences prefs = getPrefs(context);
+        final String accounts = prefs.getString(ACCOUNTS_PREF, null);
+        if (accounts == null) {
+            // a single account was stored by previous versions
+            final String account = prefs.getString(ACCOUNT_PREF, null);
+            return account == null ? new ArrayList<String>(1)
+                    : new ArrayList<String>(Collections.singletonList(account));
+        }
+        if (accounts.length() == 0) {
+            return new ArrayList<String>(1);
+        }
+        // an account name cannot hold a line separator
+        return new ArrayList<String>(Arrays.asList(accounts.split("\n")));
+    }
+    
+    public static void setAccounts(Context context, List<String> accounts) {
+        final StringBuilder buf = new StringBuilder(32 * accounts.size());
+        for (final String account : accounts) {
+            if (buf.length() != 0) {
+                buf.append('\n');
+            }
+            buf.append(account);
+        }
+        getPrefs(context).edit().putString(ACCOUNTS_PREF, buf.toString())
+                .remove(ACCOUNT_PREF).commit();
+    }
+    
+    /**
+     * Add an account, if it is not already registered.
+     */
+    public static synchronized void addAccount(Context context,
+            String account) {
+        final List<String> accounts = getAccounts(context);
+        if (!accounts.contains(account)) {
+            accounts.add(account);
+            setAccounts(context, accounts);
+        }
     }
     
     public static String getRegistrationId(Context context) {
         return getPrefs(context).getString(REG_ID_PREF, null);
     }
     
+    /**
+     * Set the registration id. The message window is cleared when the
+     * registration id changes: message sequence numbers are not shared
+     * between registrations.
+     */
     public static void setRegistrationId(Context context, String regId) {
-        getPrefs(context).edit().putString(REG_ID_PREF, regId).commit();
+        final SharedPreferences prefs = getPrefs(context);
+        final SharedPreferences.Editor editor = prefs.edit().putString(
+            REG_ID_PREF, regId);
+        if (!TextUtils.equals(regId, prefs.getString(REG_ID_PREF, null))) {
+            editor.remove(MESSAGE_WINDOW_PREF);
+        }
+        editor.commit();
     }
     
     public static boolean isOnline(Context context) {
@@ -57,4 +135,64 @@ final class Preferences {
     public static void setOnline(Context context, boolean online) {
         getPrefs(context).edit().putBoolean(ONLINE_PREF, online).commit();
     }
+    
+    public static String getCommandCursor(Context context) {
+        return getPrefs(context).getString(COMMAND_CURSOR_PREF, null);
+    }
+    
+    public static void setCommandCursor(Context context, String cursor) {
+        getPrefs(context).edit().putString(COMMAND_CURSOR_PREF, cursor)
+                .commit();
+    }
+    
+    public static MessageWindow getMessageWindow(Context context) {
+        return MessageWindow.decode(getPrefs(context).getString(
+            MESSAGE_WINDOW_PREF, null));
+    }
+    
+    public static void setMessageWindow(Context context, MessageWindow window) {
+        getPrefs(context).edit().putString(MESSAGE_WINDOW_PREF,
+            window.encode()).commit();
+    }
+    
+    public static void clearMessageWindow(Context context) {
+        getPrefs(context).edit().remove(MESSAGE_WINDOW_PREF).commit();
+    }
+    
+    public static boolean isLocalServerEnabled(Context context) {
+        return getPrefs(context).getBoolean(LOCAL_SERVER_PREF, false);
+    }
+    
+    public static void setLocalServerEnabled(Context context, boolean enabled) {
+        getPrefs(context).edit().putBoolean(LOCAL_SERVER_PREF, enabled)
+                .commit();
+    }
+    
+    /**
+     * Get the token for sending commands from the local network. A random
+     * token is generated on first use.
+     */
+    public static synchronized String getLocalServerToken(Context context) {
+        final SharedPreferences prefs = getPrefs(context);
+        String token = prefs.getString(LOCAL_SERVER_TOKEN_PREF, null);
+        if (token == null) {
+            token = newRandomId(8);
+            prefs.edit().putString(LOCAL_SERVER_TOKEN_PREF, token).commit();
+        }
+        return token;
+    }
+    
+    /**
+     * Generate a random identifier, as an hexadecimal string.
+     */
+    static String newRandomId(int byteCount) {
+        final byte[] bytes = new byte[byteCount];
+        new SecureRandom().nextBytes(bytes);
+        final StringBuilder buf = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            buf.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+                Character.forDigit(b & 0xf, 16));
+        }
+        return buf.toString();
+    }
 }
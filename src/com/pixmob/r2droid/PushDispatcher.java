@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.DEV;
+import static com.pixmob.r2droid.Constants.TAG;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.pixmob.r2droid.core.MessageDispatcher;
+
+/**
+ * Dispatcher for push messages. Messages are received by a
+ * {@link PushTransport}, and they are decoded with a
+ * {@link MessageDispatcher}: commands are executed by
+ * {@link CommandExecutorService}.
+ * @author Pixmob
+ */
+final class PushDispatcher implements MessageDispatcher.Sink {
+    private static PushDispatcher instance;
+    private final Context context;
+    /**
+     * Message decoder. This instance is only used while holding the
+     * dispatcher lock.
+     */
+    private MessageDispatcher dispatcher;
+    /**
+     * Registration id the message window was loaded for.
+     */
+    private String regId;
+    
+    private PushDispatcher(final Context context) {
+        this.context = context;
+    }
+    
+    public static synchronized PushDispatcher get(Context context) {
+        if (instance == null) {
+            instance = new PushDispatcher(context.getApplicationContext());
+        }
+        return instance;
+    }
+    
+    /**
+     * Dispatch a message. Message fields may be <code>null</code>.
+     */
+    public synchronized void dispatch(String seq, String type,
+            String payload, String command) {
+        // the message window is cleared when the registration id changes
+        final String currentRegId = Preferences.getRegistrationId(context);
+        if (dispatcher == null || !TextUtils.equals(regId, currentRegId)) {
+            regId = currentRegId;
+            dispatcher = new MessageDispatcher(Preferences
+                    .getMessageWindow(context));
+        }
+        AllocationCounter.start();
+        try {
+            if (!dispatcher.dispatch(seq, type, payload, command, this)) {
+                if (DEV) {
+                    Log.i(TAG, "Dropping duplicate or stale message: " + seq);
+                }
+                return;
+            }
+            if (seq != null) {
+                Preferences.setMessageWindow(context, dispatcher.getWindow());
+            }
+        } finally {
+            AllocationCounter.stop("push dispatch", AllocationCounter.get());
+        }
+    }
+    
+    /**
+     * Forget received messages. This method is called when the device is
+     * unregistered: sequence numbers may restart with the next registration.
+     */
+    public synchronized void reset() {
+        dispatcher = null;
+        Preferences.clearMessageWindow(context);
+    }
+    
+    @Override
+    public void onSync() {
+        // pending commands are fetched from the central host
+        context.startService(DeviceRegistrationService.newIntent(context,
+                DeviceRegistrationService.ACTION_SYNC_COMMANDS));
+    }
+    
+    @Override
+    public void onCommand(String command) {
+        CommandExecutorService.execute(context, command);
+    }
+    
+    @Override
+    public void onError(String message, Exception cause) {
+        Log.w(TAG, message, cause);
+    }
+}
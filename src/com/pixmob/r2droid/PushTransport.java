@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import android.content.Context;
+
+/**
+ * Transport for delivering push messages to this device. A transport is
+ * only responsible for delivery: received messages are handed to
+ * {@link PushDispatcher}, which executes commands.
+ * <p>
+ * When a registration id is available, a transport must store it with
+ * {@link Preferences#setRegistrationId(Context, String)} and start
+ * {@link DeviceRegistrationService} with
+ * {@link DeviceRegistrationService#ACTION_C2DM_REGISTERED}: the registration
+ * id is then sent to the central host. When the device is unregistered, the
+ * transport starts {@link DeviceRegistrationService} with
+ * {@link DeviceRegistrationService#ACTION_C2DM_UNREGISTERED}.
+ * </p>
+ * @author Pixmob
+ */
+interface PushTransport {
+    /**
+     * Start receiving messages. This method returns immediately: the
+     * registration id is sent asynchronously.
+     * @return <code>false</code> if this transport is not available
+     */
+    boolean register(Context context);
+    
+    /**
+     * Stop receiving messages.
+     * @return <code>false</code> if this transport is not available
+     */
+    boolean unregister(Context context);
+    
+    /**
+     * Resume message delivery for a registered device, after the application
+     * process was restarted.
+     */
+    void resume(Context context);
+    
+    /**
+     * Get the current registration id for this transport.
+     * @return registration id, or <code>null</code> if this device is not
+     *         registered
+     */
+    String getRegistrationId(Context context);
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import android.content.Context;
+
+/**
+ * Push transport factory. The transport is selected at build time, with the
+ * resource <code>push_transport</code>.
+ * @author Pixmob
+ */
+final class PushTransports {
+    public static final String C2DM = "c2dm";
+    public static final String POLLING = "polling";
+    private static PushTransport transport;
+    
+    private PushTransports() {
+    }
+    
+    /**
+     * Get the push transport for this application.
+     */
+    public static synchronized PushTransport get(Context context) {
+        if (transport == null) {
+            final String name = context.getString(R.string.push_transport);
+            if (POLLING.equals(name)) {
+                transport = new PollingTransport();
+            } else if (C2DM.equals(name)) {
+                transport = new C2DMTransport();
+            } else {
+                throw new IllegalStateException("Unsupported push transport: "
+                        + name);
+            }
+        }
+        return transport;
+    }
+}
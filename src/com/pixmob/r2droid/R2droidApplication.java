@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import android.app.Application;
+
+/**
+ * Application class. The process start time is recorded here, since this is
+ * the first application code executed in a new process.
+ * <p>
+ * Commands are executed in a separate process, named with the suffix
+ * {@link #EXEC_PROCESS_SUFFIX}: this class is instantiated in both
+ * processes.
+ * </p>
+ * @author Pixmob
+ */
+public class R2droidApplication extends Application {
+    public static final String EXEC_PROCESS_SUFFIX = ":exec";
+    private static String processName;
+    
+    public R2droidApplication() {
+        StartupTimer.onProcessStart();
+    }
+    
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        MemoryBudget.onLowMemory();
+    }
+    
+    /**
+     * Get the name of the current process.
+     */
+    public static synchronized String getProcessName() {
+        if (processName == null) {
+            processName = readProcessName();
+        }
+        return processName;
+    }
+    
+    /**
+     * Check if the current process is the command execution process.
+     */
+    public static boolean isExecProcess() {
+        return getProcessName().endsWith(EXEC_PROCESS_SUFFIX);
+    }
+    
+    private static String readProcessName() {
+        // the command line of an application process is its name, ended by
+        // a null character
+        try {
+            final FileInputStream in = new FileInputStream(
+                    "/proc/self/cmdline");
+            try {
+                final byte[] buf = new byte[128];
+                final int bytesRead = in.read(buf);
+                int length = 0;
+                while (length < bytesRead && buf[length] != 0) {
+                    ++length;
+                }
+                return new String(buf, 0, length, "US-ASCII");
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.DEV;
+import static com.pixmob.r2droid.Constants.TAG;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Scheduler for registration reconciliation. The registration id and the
+ * account known by the central host are periodically checked while the
+ * device is online.
+ * <p>
+ * The check is triggered by an inexact repeating alarm, using the intervals
+ * defined by {@link AlarmManager}: the system aligns these alarms with
+ * alarms from other applications, and the device is not woken up only for
+ * this check. The interval grows while the registration is consistent.
+ * </p>
+ * @author Pixmob
+ */
+final class Reconciler {
+    private static final long[] INTERVALS = { AlarmManager.INTERVAL_HOUR,
+            AlarmManager.INTERVAL_HALF_DAY, AlarmManager.INTERVAL_DAY };
+    private static final String PREFS_NAME = "reconciler";
+    private static final String INTERVAL_INDEX_PREF = "intervalIndex";
+    private static final String CONFIRMED_STATE_PREF = "confirmedState:";
+    
+    private Reconciler() {
+    }
+    
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+    
+    /**
+     * Start periodic checks, with the shortest interval.
+     */
+    public static void start(Context context) {
+        getPrefs(context).edit().putInt(INTERVAL_INDEX_PREF, 0).commit();
+        schedule(context, 0);
+    }
+    
+    /**
+     * Start periodic checks if they are not scheduled. Alarms are lost when
+     * the device is rebooted.
+     */
+    public static void ensureStarted(Context context) {
+        if (PendingIntent.getService(context, 0,
+            DeviceRegistrationService.newIntent(context,
+                DeviceRegistrationService.ACTION_RECONCILE),
+            PendingIntent.FLAG_NO_CREATE) == null) {
+            schedule(context, getPrefs(context).getInt(INTERVAL_INDEX_PREF, 0));
+        }
+    }
+    
+    /**
+     * Stop periodic checks.
+     */
+    public static void stop(Context context) {
+        final PendingIntent reconcileIntent = getReconcileIntent(context);
+        final AlarmManager am = (AlarmManager) context
+                .getSystemService(Context.ALARM_SERVICE);
+        am.cancel(reconcileIntent);
+        reconcileIntent.cancel();
+        getPrefs(context).edit().clear().commit();
+    }
+    
+    /**
+     * Notify this scheduler that the registration is consistent: the next
+     * check is delayed.
+     */
+    public static void onConsistent(Context context) {
+        final SharedPreferences prefs = getPrefs(context);
+        final int index = prefs.getInt(INTERVAL_INDEX_PREF, 0);
+        if (index < INTERVALS.length - 1) {
+            prefs.edit().putInt(INTERVAL_INDEX_PREF, index + 1).commit();
+            schedule(context, index + 1);
+        }
+    }
+    
+    /**
+     * Notify this scheduler that the registration was updated or could not
+     * be checked: the next check is done with the shortest interval.
+     */
+    public static void onInconsistent(Context context) {
+        final SharedPreferences prefs = getPrefs(context);
+        if (prefs.getInt(INTERVAL_INDEX_PREF, 0) != 0) {
+            start(context);
+        }
+    }
+    
+    /**
+     * Check if a registration was confirmed by the central host for an
+     * account.
+     */
+    public static boolean isConfirmed(Context context, String account,
+            String regId) {
+        return regId.equals(getPrefs(context).getString(
+            CONFIRMED_STATE_PREF + account, null));
+    }
+    
+    /**
+     * Remember a registration confirmed by the central host for an account.
+     */
+    public static void setConfirmed(Context context, String account,
+            String regId) {
+        getPrefs(context).edit().putString(CONFIRMED_STATE_PREF + account,
+            regId).commit();
+    }
+    
+    private static void schedule(Context context, int intervalIndex) {
+        final long interval = INTERVALS[intervalIndex];
+        if (DEV) {
+            Log.d(TAG, "Registration check interval: " + interval + " ms");
+        }
+        final AlarmManager am = (AlarmManager) context
+                .getSystemService(Context.ALARM_SERVICE);
+        am.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+            SystemClock.elapsedRealtime() + interval, interval,
+            getReconcileIntent(context));
+    }
+    
+    private static PendingIntent getReconcileIntent(Context context) {
+        return PendingIntent.getService(context, 0,
+            DeviceRegistrationService.newIntent(context,
+                DeviceRegistrationService.ACTION_RECONCILE), 0);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+
+/**
+ * Service receiving command results in the main process. The command
+ * execution process binds to this service while commands are queued, and it
+ * sends results with a {@link Messenger}: a result is stored without creating
+ * {@link DeviceRegistrationService}. A result may also be sent with
+ * {@link #addResult(Context, String)}, if the service is not bound.
+ * <p>
+ * This service owns the notification for the command being executed: the
+ * command execution process reports when a command is started, and the
+ * command result ends it. The command is cancelled with an intent sent to
+ * this service (see {@link #getCancelIntent(Context)}): the cancellation is
+ * forwarded to the command execution process.
+ * </p>
+ * @author Pixmob
+ */
+public class ResultService extends Service {
+    /**
+     * Message for a command result: the JSON encoded result is stored in the
+     * message data, with the key {@link #KEY_RESULT}. The first argument of
+     * the message is 0.
+     */
+    public static final int MSG_ADD_RESULT = 1;
+    /**
+     * Message for a started command: the command is stored in the message
+     * data, with the key {@link CommandExecutorService#KEY_COMMAND}, and the
+     * first argument is the number of commands queued after this one.
+     */
+    public static final int MSG_COMMAND_STARTED = 2;
+    private static final int MSG_UNBOUND = 3;
+    public static final String KEY_RESULT = "result";
+    private static final String ACTION_CANCEL = "com.pixmob.r2droid.intent.action.CANCEL_COMMAND";
+    private Handler handler;
+    private Messenger messenger;
+    
+    /**
+     * Send a command result to this service, without binding to it.
+     * @param result JSON encoded result
+     */
+    public static void addResult(Context context, String result) {
+        final Intent intent = new Intent(context, ResultService.class);
+        intent.putExtra(KEY_RESULT, result);
+        context.startService(intent);
+    }
+    
+    /**
+     * Get the intent for cancelling the command being executed.
+     */
+    public static PendingIntent getCancelIntent(Context context) {
+        final Intent intent = new Intent(context, ResultService.class);
+        intent.setAction(ACTION_CANCEL);
+        return PendingIntent.getService(context, 0, intent, 0);
+    }
+    
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // results are written to a file: this is not done in the main thread
+        final HandlerThread thread = new HandlerThread("R2droid Results");
+        thread.start();
+        handler = new ResultHandler(this, thread.getLooper());
+        messenger = new Messenger(handler);
+    }
+    
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // results received before the service was unbound are stored before
+        // the thread is stopped
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myLooper().quit();
+            }
+        });
+        handler = null;
+        messenger = null;
+    }
+    
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_CANCEL.equals(intent.getAction())) {
+            ExecutorConnection.get(this).cancel();
+            stopSelf(startId);
+            return START_NOT_STICKY;
+        }
+        final String result = intent == null ? null : intent
+                .getStringExtra(KEY_RESULT);
+        // the service is stopped once the result is stored
+        final Message msg = handler.obtainMessage(MSG_ADD_RESULT, startId, 0);
+        msg.getData().putString(KEY_RESULT, result);
+        msg.sendToTarget();
+        return START_NOT_STICKY;
+    }
+    
+    @Override
+    public IBinder onBind(Intent intent) {
+        return messenger.getBinder();
+    }
+    
+    @Override
+    public boolean onUnbind(Intent intent) {
+        // the command execution process is gone: its notification is removed
+        handler.sendEmptyMessage(MSG_UNBOUND);
+        return false;
+    }
+    
+    private static class ResultHandler extends Handler {
+        private final Service service;
+        private final ForegroundManager foreground;
+        private final PendingIntent cancelIntent;
+        private final String tapToCancel;
+        private boolean commandStarted;
+        
+        public ResultHandler(final Service service, final Looper looper) {
+            super(looper);
+            this.service = service;
+            foreground = ForegroundManager.get(service);
+            cancelIntent = getCancelIntent(service);
+            tapToCancel = service.getString(R.string.tap_to_cancel_command);
+        }
+        
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_COMMAND_STARTED) {
+                final String command = msg.getData().getString(
+                    CommandExecutorService.KEY_COMMAND);
+                foreground.setQueueDepth(msg.arg1);
+                foreground.start(service, service.getString(
+                    R.string.executing_command, command), tapToCancel,
+                    cancelIntent);
+                commandStarted = true;
+            } else if (msg.what == MSG_UNBOUND) {
+                stopCommand();
+                foreground.setQueueDepth(0);
+            } else if (msg.what == MSG_ADD_RESULT) {
+                CommandResults.store(service, msg.getData().getString(
+                    KEY_RESULT));
+                // the command executor is unbound when every command
+                // returned its result
+                ExecutorConnection.get(service).onCommandFinished();
+                if (msg.arg1 != 0) {
+                    // the result was sent with an intent
+                    service.stopSelf(msg.arg1);
+                } else {
+                    stopCommand();
+                }
+            } else {
+                super.handleMessage(msg);
+            }
+        }
+        
+        private void stopCommand() {
+            if (commandStarted) {
+                commandStarted = false;
+                foreground.stop(service, true);
+            }
+        }
+    }
+}
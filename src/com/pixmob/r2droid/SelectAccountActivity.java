@@ -269,8 +269,9 @@ public class SelectAccountActivity extends ListActivity {
             
             int dialogId = -1;
             try {
-                final int statusCode = gaeClient.execute(req).getStatusLine()
-                        .getStatusCode();
+                final int statusCode = HostMonitor.execute(gaeClient, req,
+                    "login").getStatusLine().getStatusCode();
+                NetworkScheduler.onNetworkUsed(context);
                 if (statusCode == 302) {
                     // success!
                     if (DEV) {
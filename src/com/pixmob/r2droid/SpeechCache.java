@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.DEV;
+import static com.pixmob.r2droid.Constants.TAG;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.os.Environment;
+import android.provider.Settings;
+import android.util.Log;
+
+/**
+ * Disk cache for synthesized speech. Texts are rendered to audio files by the
+ * text-to-speech engine, and these files are kept in a LRU cache with a size
+ * budget. Cache entries are keyed by the normalized text, the locale and the
+ * engine used for synthesis.
+ * <p>
+ * The text-to-speech engine runs in its own process: the audio files are
+ * written to the external cache directory, since the engine cannot write to
+ * the application private directory.
+ * </p>
+ * <p>
+ * A prepared player is kept for the last played entry, so that a repeated
+ * text starts playing with no delay. The player is released when memory is
+ * needed, see {@link MemoryBudget}.
+ * </p>
+ * @author Pixmob
+ */
+final class SpeechCache {
+    private static final String FILE_EXTENSION = ".wav";
+    private static final long MAX_SIZE = 4 * 1024 * 1024;
+    private static final long PLAYER_RESIDENT_BYTES = 64 * 1024;
+    private static SpeechCache instance;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+    private final File cacheDir;
+    private final long maxSize;
+    private long size;
+    private String preloadedKey;
+    private MediaPlayer preloadedPlayer;
+    private final MemoryBudget.Resource playerResource = new MemoryBudget.Resource() {
+        @Override
+        public long getResidentBytes() {
+            synchronized (SpeechCache.this) {
+                return preloadedPlayer == null ? 0 : PLAYER_RESIDENT_BYTES;
+            }
+        }
+        
+        @Override
+        public void trim(long bytes) {
+            releasePreloadedPlayer();
+        }
+    };
+    
+    private SpeechCache(final File cacheDir, final long maxSize) {
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+        load();
+        MemoryBudget.register("Speech player", playerResource,
+            MemoryBudget.PRIORITY_LOW);
+    }
+    
+    /**
+     * Get the speech cache. The cache is shared by the whole application.
+     * @return the speech cache, or <code>null</code> if no storage is
+     *         available for caching speech
+     */
+    public static synchronized SpeechCache get(Context context) {
+        if (instance == null) {
+            if (!Environment.MEDIA_MOUNTED.equals(Environment
+                    .getExternalStorageState())) {
+                if (DEV) {
+                    Log.w(TAG, "External storage is unavailable: "
+                            + "speech cache is disabled");
+                }
+                return null;
+            }
+            final File externalCacheDir = context.getExternalCacheDir();
+            if (externalCacheDir == null) {
+                return null;
+            }
+            final File cacheDir = new File(externalCacheDir, "speech");
+            if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+                Log.w(TAG, "Failed to create speech cache directory: "
+                        + cacheDir);
+                return null;
+            }
+            instance = new SpeechCache(cacheDir, MAX_SIZE);
+        }
+        return instance;
+    }
+    
+    /**
+     * Get the package name of the text-to-speech engine used by default.
+     */
+    public static String getDefaultEngine(Context context) {
+        final String engine = Settings.Secure.getString(context
+                .getContentResolver(), Settings.Secure.TTS_DEFAULT_SYNTH);
+        return engine == null ? "" : engine;
+    }
+    
+    /**
+     * Normalize a text before it is spoken: duplicated whitespaces are
+     * removed.
+     */
+    public static String normalize(String text) {
+        final StringBuilder buf = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); ++i) {
+            final char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = buf.length() != 0;
+            } else {
+                if (space) {
+                    buf.append(' ');
+                    space = false;
+                }
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+    
+    /**
+     * Compute the cache key for a text.
+     */
+    public static String key(String text, Locale locale, String engine) {
+        final String str = normalize(text) + '\n' + locale + '\n' + engine;
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] hash = digest.digest(str.getBytes("UTF-8"));
+            final StringBuilder buf = new StringBuilder(hash.length * 2);
+            for (final byte b : hash) {
+                final int i = b & 0xff;
+                if (i < 0x10) {
+                    buf.append('0');
+                }
+                buf.append(Integer.toHexString(i));
+            }
+            return buf.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is unavailable", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 encoding is unavailable", e);
+        }
+    }
+    
+    private void load() {
+        final File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // restore LRU order: the access time is stored as the file date
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File object1, File object2) {
+                final long d1 = object1.lastModified();
+                final long d2 = object2.lastModified();
+                return d1 < d2 ? -1 : (d1 == d2 ? 0 : 1);
+            }
+        });
+        for (final File file : files) {
+            final String name = file.getName();
+            if (name.endsWith(FILE_EXTENSION)) {
+                final Entry entry = new Entry(file);
+                entries.put(name.substring(0, name.length()
+                        - FILE_EXTENSION.length()), entry);
+                size += entry.length;
+            } else {
+                // remove pending synthesis files
+                file.delete();
+            }
+        }
+        if (DEV) {
+            Log.d(TAG, "Speech cache loaded: " + entries.size()
+                    + " entries, " + size + " bytes");
+        }
+        trim();
+    }
+    
+    /**
+     * Get the audio file for a cache key.
+     * @return audio file, or <code>null</code> if this key is not cached
+     */
+    public synchronized File get(String key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.file.isFile()) {
+            // the file was deleted out of this cache
+            entries.remove(key);
+            size -= entry.length;
+            return null;
+        }
+        entry.file.setLastModified(System.currentTimeMillis());
+        return entry.file;
+    }
+    
+    /**
+     * Create a temporary file, where a text can be synthesized to.
+     */
+    public File createTempFile() throws IOException {
+        return File.createTempFile("speech", ".tmp", cacheDir);
+    }
+    
+    /**
+     * Store a synthesized audio file in this cache. The file is moved to the
+     * cache directory.
+     */
+    public synchronized void put(String key, File tempFile) {
+        final Entry oldEntry = entries.remove(key);
+        if (oldEntry != null) {
+            size -= oldEntry.length;
+        }
+        final File file = new File(cacheDir, key + FILE_EXTENSION);
+        if (tempFile.length() == 0 || !tempFile.renameTo(file)) {
+            Log.w(TAG, "Failed to store synthesized speech in cache: "
+                    + tempFile);
+            tempFile.delete();
+            file.delete();
+            return;
+        }
+        final Entry entry = new Entry(file);
+        entries.put(key, entry);
+        size += entry.length;
+        trim();
+    }
+    
+    private void trim() {
+        final Iterator<Entry> i = entries.values().iterator();
+        while (size > maxSize && i.hasNext()) {
+            final Entry entry = i.next();
+            size -= entry.length;
+            entry.file.delete();
+            i.remove();
+            if (DEV) {
+                Log.d(TAG, "Evicted from speech cache: " + entry.file);
+            }
+        }
+    }
+    
+    /**
+     * Get a player for a cached audio file. The player is prepared, and
+     * starts playing with no delay: if this entry was preloaded, the player
+     * is not prepared again.
+     */
+    public MediaPlayer openPlayer(String key, File file) throws IOException {
+        synchronized (this) {
+            if (preloadedPlayer != null && key.equals(preloadedKey)) {
+                final MediaPlayer player = preloadedPlayer;
+                preloadedPlayer = null;
+                preloadedKey = null;
+                return player;
+            }
+        }
+        return createPlayer(file);
+    }
+    
+    /**
+     * Prepare a player for a cache entry, which is likely to be played again.
+     * The previous preloaded player is released.
+     */
+    public void preload(String key) {
+        final File file = get(key);
+        if (file == null) {
+            return;
+        }
+        final MediaPlayer player;
+        try {
+            player = createPlayer(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to preload cached speech: " + file, e);
+            return;
+        }
+        releasePreloadedPlayer();
+        synchronized (this) {
+            preloadedPlayer = player;
+            preloadedKey = key;
+        }
+        MemoryBudget.checkBudget();
+    }
+    
+    private void releasePreloadedPlayer() {
+        final MediaPlayer player;
+        synchronized (this) {
+            player = preloadedPlayer;
+            preloadedPlayer = null;
+            preloadedKey = null;
+        }
+        if (player != null) {
+            player.release();
+        }
+    }
+    
+    private static MediaPlayer createPlayer(File file) throws IOException {
+        final MediaPlayer player = new MediaPlayer();
+        player.setAudioStreamType(AudioManager.STREAM_RING);
+        try {
+            player.setDataSource(file.getAbsolutePath());
+            player.prepare();
+        } catch (IOException e) {
+            player.release();
+            throw e;
+        }
+        return player;
+    }
+    
+    /**
+     * Cache entry. The file length is kept, since the file may be deleted
+     * out of this cache.
+     * @author Pixmob
+     */
+    private static class Entry {
+        final File file;
+        final long length;
+        
+        public Entry(final File file) {
+            this.file = file;
+            length = file.length();
+        }
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.DEV;
+import static com.pixmob.r2droid.Constants.TAG;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.TextToSpeech.OnInitListener;
+import android.util.Log;
+
+import com.pixmob.actionservice.ActionExecutionFailedException;
+import com.pixmob.r2droid.core.CancellationToken;
+
+/**
+ * Text-to-speech engine manager. A {@link TextToSpeech} instance is kept for
+ * each recently used locale, so that switching between languages does not
+ * load a language again. Language availability is cached for each engine
+ * binding, and this cache is invalidated when text-to-speech data is
+ * installed. Engines are shut down when they are not used for some time. The
+ * number of voices is bounded by the memory budget: least recently used
+ * voices are unloaded first, see {@link MemoryBudget}.
+ * @author Pixmob
+ */
+final class SpeechEngine {
+    private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+    private static final long INIT_POLL_INTERVAL = 50;
+    /**
+     * Estimate of the memory held by a voice: the engine binding, and the
+     * language data loaded by the engine.
+     */
+    private static final long VOICE_RESIDENT_BYTES = 256 * 1024;
+    private static SpeechEngine instance;
+    private final Context context;
+    private final Map<Locale, Voice> voices = new LinkedHashMap<Locale, Voice>(
+            4, 0.75f, true);
+    private final Map<Locale, Integer> languageAvailability = new HashMap<Locale, Integer>(
+            4);
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private int initCount;
+    private final Runnable idleShutdown = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SpeechEngine.this) {
+                // an engine may have been acquired after this task was
+                // posted: the task is posted again when it is released
+                if (initCount != 0) {
+                    return;
+                }
+                for (final Voice voice : voices.values()) {
+                    if (voice.users != 0) {
+                        return;
+                    }
+                }
+                if (DEV) {
+                    Log.d(TAG, "TTS engine is idle");
+                }
+                shutdown();
+            }
+        }
+    };
+    private final BroadcastReceiver dataInstalledReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (DEV) {
+                Log.i(TAG, "TTS data installed: "
+                        + "clearing language availability cache");
+            }
+            synchronized (SpeechEngine.this) {
+                languageAvailability.clear();
+            }
+        }
+    };
+    
+    private final MemoryBudget.Resource voicesResource = new MemoryBudget.Resource() {
+        @Override
+        public long getResidentBytes() {
+            synchronized (SpeechEngine.this) {
+                return voices.size() * VOICE_RESIDENT_BYTES;
+            }
+        }
+        
+        @Override
+        public void trim(long bytes) {
+            synchronized (SpeechEngine.this) {
+                // engines are not shut down while they are initialized, or
+                // while a text is spoken
+                if (initCount != 0) {
+                    return;
+                }
+                long trimmedBytes = 0;
+                final Iterator<Voice> i = voices.values().iterator();
+                while (trimmedBytes < bytes && i.hasNext()) {
+                    final Voice voice = i.next();
+                    if (voice.users == 0) {
+                        if (DEV) {
+                            Log.d(TAG, "Unloading TTS voice for "
+                                    + voice.locale);
+                        }
+                        voice.shutdown();
+                        i.remove();
+                        trimmedBytes += VOICE_RESIDENT_BYTES;
+                    }
+                }
+                if (voices.isEmpty()) {
+                    // language availability is cached for engine bindings
+                    languageAvailability.clear();
+                }
+            }
+        }
+    };
+    
+    private SpeechEngine(final Context context) {
+        this.context = context;
+        context.registerReceiver(dataInstalledReceiver, new IntentFilter(
+                TextToSpeech.Engine.ACTION_TTS_DATA_INSTALLED));
+        MemoryBudget.register("TTS voices", voicesResource,
+            MemoryBudget.PRIORITY_HIGH);
+    }
+    
+    /**
+     * Get the text-to-speech engine manager. This instance is shared by the
+     * whole application.
+     */
+    public static synchronized SpeechEngine get(Context context) {
+        if (instance == null) {
+            instance = new SpeechEngine(context.getApplicationContext());
+        }
+        return instance;
+    }
+    
+    /**
+     * Parse a language tag, such as <code>fr</code> or <code>en-US</code>.
+     */
+    public static Locale parseLocale(String languageTag) {
+        final String[] parts = languageTag.split("[-_]", 3);
+        if (parts.length == 1) {
+            return new Locale(parts[0]);
+        }
+        if (parts.length == 2) {
+            return new Locale(parts[0], parts[1]);
+        }
+        return new Locale(parts[0], parts[1], parts[2]);
+    }
+    
+    /**
+     * Get an engine for speaking in a locale. The engine must be released
+     * with {@link #release(TextToSpeech)} when it is no longer used. If the
+     * locale is not supported, the engine speaks English.
+     */
+    public TextToSpeech acquire(Locale locale, CancellationToken token)
+            throws ActionExecutionFailedException, InterruptedException {
+        handler.removeCallbacks(idleShutdown);
+        
+        // engines are not trimmed while they are initialized
+        synchronized (this) {
+            ++initCount;
+        }
+        Voice voice;
+        try {
+            final Locale resolvedLocale = resolveLocale(locale, token);
+            boolean created = false;
+            synchronized (this) {
+                voice = voices.get(resolvedLocale);
+                if (voice == null) {
+                    voice = new Voice(resolvedLocale);
+                    voices.put(resolvedLocale, voice);
+                    created = true;
+                }
+            }
+            if (created) {
+                // the engine is bound without holding the lock
+                voice.bind();
+            }
+            awaitInit(voice, token);
+            synchronized (this) {
+                ++voice.users;
+            }
+        } finally {
+            synchronized (this) {
+                --initCount;
+            }
+        }
+        // a new voice may exceed the budget: idle voices are unloaded
+        MemoryBudget.checkBudget();
+        return voice.getTts();
+    }
+    
+    /**
+     * Release an engine.
+     */
+    public void release(TextToSpeech tts) {
+        tts.stop();
+        synchronized (this) {
+            for (final Voice voice : voices.values()) {
+                if (voice.getTts() == tts) {
+                    --voice.users;
+                }
+            }
+        }
+        handler.removeCallbacks(idleShutdown);
+        handler.postDelayed(idleShutdown, IDLE_TIMEOUT);
+    }
+    
+    /**
+     * Shut down every engine.
+     */
+    public synchronized void shutdown() {
+        handler.removeCallbacks(idleShutdown);
+        for (final Voice voice : voices.values()) {
+            voice.shutdown();
+        }
+        voices.clear();
+        languageAvailability.clear();
+    }
+    
+    private Locale resolveLocale(Locale locale, CancellationToken token)
+            throws ActionExecutionFailedException, InterruptedException {
+        Integer languageResult;
+        Voice voice;
+        Voice probe = null;
+        synchronized (this) {
+            languageResult = languageAvailability.get(locale);
+            if (languageResult == null) {
+                voice = voices.get(locale);
+                if (voice == null && !voices.isEmpty()) {
+                    // any bound engine may check language availability
+                    voice = voices.values().iterator().next();
+                }
+                if (voice == null) {
+                    voice = new Voice(locale);
+                    voices.put(locale, voice);
+                    probe = voice;
+                }
+            } else {
+                voice = null;
+            }
+        }
+        
+        if (languageResult == null) {
+            if (probe != null) {
+                probe.bind();
+            }
+            awaitInit(voice, token);
+            languageResult = voice.getTts().isLanguageAvailable(locale);
+            if (DEV) {
+                Log.d(TAG, "TTS language availability for " + locale + ": "
+                        + languageResult);
+            }
+            synchronized (this) {
+                languageAvailability.put(locale, languageResult);
+            }
+            if (probe != null && !isAvailable(languageResult)) {
+                // the voice created for checking this locale cannot speak it
+                releaseProbe(probe);
+            }
+        }
+        
+        if (TextToSpeech.LANG_MISSING_DATA == languageResult) {
+            throw new ActionExecutionFailedException(
+                    "Missing text-to-speech data: "
+                            + "you may install TTS package from Android Market");
+        }
+        if (TextToSpeech.LANG_NOT_SUPPORTED == languageResult) {
+            // defaulting to english if the language is not supported
+            return Locale.ENGLISH;
+        }
+        return locale;
+    }
+    
+    private static boolean isAvailable(int languageResult) {
+        return languageResult != TextToSpeech.LANG_MISSING_DATA
+                && languageResult != TextToSpeech.LANG_NOT_SUPPORTED;
+    }
+    
+    /**
+     * Unload a voice created for checking language availability, unless
+     * another command is using it.
+     */
+    private void releaseProbe(Voice probe) {
+        synchronized (this) {
+            if (probe.users != 0 || voices.get(probe.locale) != probe) {
+                return;
+            }
+            voices.remove(probe.locale);
+        }
+        if (DEV) {
+            Log.d(TAG, "Unloading TTS voice for " + probe.locale);
+        }
+        probe.shutdown();
+    }
+    
+    private void awaitInit(Voice voice, CancellationToken token)
+            throws ActionExecutionFailedException, InterruptedException {
+        while (!voice.initBarrier.await(INIT_POLL_INTERVAL,
+            TimeUnit.MILLISECONDS)) {
+            token.throwIfCancelled();
+        }
+        if (voice.initStatus != TextToSpeech.SUCCESS) {
+            synchronized (this) {
+                if (voices.get(voice.locale) == voice) {
+                    voices.remove(voice.locale);
+                }
+            }
+            voice.shutdown();
+            throw new ActionExecutionFailedException(
+                    "Failed to initialize text-to-speech engine");
+        }
+    }
+    
+    /**
+     * Text-to-speech engine for a locale. The engine is bound with
+     * {@link #bind()}, without holding the engine lock: the initialization
+     * callback may run before the engine is published.
+     * @author Pixmob
+     */
+    private class Voice implements OnInitListener {
+        private static final int INIT_PENDING = Integer.MIN_VALUE;
+        final Locale locale;
+        final CountDownLatch initBarrier = new CountDownLatch(1);
+        volatile int initStatus = TextToSpeech.ERROR;
+        /**
+         * Number of commands using this voice, guarded by the engine.
+         */
+        int users;
+        /**
+         * Bound engine, guarded by this voice.
+         */
+        private TextToSpeech tts;
+        /**
+         * Status received before the engine was published, guarded by this
+         * voice.
+         */
+        private int earlyInitStatus = INIT_PENDING;
+        private boolean shutdown;
+        
+        public Voice(final Locale locale) {
+            this.locale = locale;
+        }
+        
+        public void bind() {
+            if (DEV) {
+                Log.d(TAG, "Initializing TTS for " + locale);
+            }
+            final TextToSpeech engine;
+            try {
+                engine = new TextToSpeech(context, this);
+            } catch (RuntimeException e) {
+                // waiting commands fail with the initial error status
+                initBarrier.countDown();
+                throw e;
+            }
+            final int status;
+            final boolean stopped;
+            synchronized (this) {
+                tts = engine;
+                status = earlyInitStatus;
+                stopped = shutdown;
+            }
+            if (stopped) {
+                // this voice was unloaded while the engine was bound
+                engine.shutdown();
+            } else if (status != INIT_PENDING) {
+                onInit(engine, status);
+            }
+        }
+        
+        public synchronized TextToSpeech getTts() {
+            return tts;
+        }
+        
+        public void shutdown() {
+            final TextToSpeech engine;
+            synchronized (this) {
+                shutdown = true;
+                engine = tts;
+            }
+            if (engine != null) {
+                engine.shutdown();
+            }
+        }
+        
+        @Override
+        public void onInit(int status) {
+            final TextToSpeech engine;
+            synchronized (this) {
+                engine = tts;
+                if (engine == null) {
+                    // the engine is not published yet: bind() completes
+                    // the initialization
+                    earlyInitStatus = status;
+                    return;
+                }
+            }
+            onInit(engine, status);
+        }
+        
+        private void onInit(TextToSpeech engine, int status) {
+            if (status == TextToSpeech.SUCCESS) {
+                engine.setLanguage(locale);
+                if (DEV) {
+                    Log.d(TAG, "TTS initialized for " + locale);
+                }
+            }
+            initStatus = status;
+            initBarrier.countDown();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.TAG;
+
+import android.app.Service;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Timer for application cold start. Startup milestones are recorded when
+ * the process is started: activity creation, first frame and state ready.
+ * Timings are logged once every milestone is reached. A process started for
+ * a service, such as the command execution process, reports the time taken
+ * to create this service.
+ * @author Pixmob
+ */
+final class StartupTimer {
+    /**
+     * Maximum delay between process start and activity creation for a cold
+     * start. The process may have been started for a service.
+     */
+    private static final long MAX_COLD_START_DELAY = 10 * 1000;
+    private static long processStart;
+    private static long activityCreated;
+    private static long firstFrame;
+    private static long stateReady;
+    private static boolean done;
+    private static boolean serviceCreated;
+    
+    private StartupTimer() {
+    }
+    
+    public static synchronized void onProcessStart() {
+        processStart = SystemClock.elapsedRealtime();
+    }
+    
+    public static synchronized void onActivityCreated() {
+        if (activityCreated == 0) {
+            activityCreated = SystemClock.elapsedRealtime();
+            if (activityCreated - processStart > MAX_COLD_START_DELAY) {
+                // not a cold start: nothing is reported
+                done = true;
+            }
+        }
+    }
+    
+    /**
+     * Report the startup time of a process started for a service.
+     */
+    public static synchronized void onServiceCreated(Service service) {
+        if (serviceCreated || activityCreated != 0) {
+            return;
+        }
+        serviceCreated = true;
+        final long elapsed = SystemClock.elapsedRealtime() - processStart;
+        if (processStart == 0 || elapsed > MAX_COLD_START_DELAY) {
+            // the process was not started for this service
+            return;
+        }
+        Log.i(TAG, "Cold start: process "
+                + R2droidApplication.getProcessName() + " started for "
+                + service.getClass().getSimpleName() + " in " + elapsed
+                + " ms");
+    }
+    
+    public static synchronized void onFirstFrame() {
+        if (firstFrame == 0) {
+            firstFrame = SystemClock.elapsedRealtime();
+            report();
+        }
+    }
+    
+    public static synchronized void onStateReady() {
+        if (stateReady == 0) {
+            stateReady = SystemClock.elapsedRealtime();
+            report();
+        }
+    }
+    
+    private static void report() {
+        if (done || processStart == 0 || activityCreated == 0
+                || firstFrame == 0 || stateReady == 0) {
+            return;
+        }
+        done = true;
+        
+        // this line is always logged: startup regressions are detected from
+        // release builds
+        Log.i(TAG, "Cold start: activity created in "
+                + (activityCreated - processStart) + " ms, first frame in "
+                + (firstFrame - processStart) + " ms, state ready in "
+                + (stateReady - processStart) + " ms");
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.DEV;
+import static com.pixmob.r2droid.Constants.TAG;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.pixmob.r2droid.core.StateDelta;
+
+/**
+ * Status reports sent to the central host. A report only holds the values
+ * which changed since the last report acknowledged by the central host:
+ * <code>{"v":3,"base":2,"bat":"80"}</code>. A report without a base holds
+ * the full device state.
+ * <p>
+ * A report is prepared with {@link #prepare(Context, Map)}: it becomes the
+ * base for next reports once it is acknowledged with
+ * {@link #commit(Context)}.
+ * </p>
+ * @author Pixmob
+ */
+final class StatusReports {
+    /**
+     * Time while the central host is known to have the device state: no
+     * report is sent if the state did not change.
+     */
+    private static final long CACHE_WINDOW = 30 * 1000;
+    private static final String PREFS_NAME = "status";
+    private static final String ACKED_STATE_PREF = "ackedState";
+    private static final String ACKED_VERSION_PREF = "ackedVersion";
+    private static final String ACKED_TIME_PREF = "ackedTime";
+    private static final String PENDING_STATE_PREF = "pendingState";
+    private static final String VERSION_KEY = "v";
+    private static final String BASE_KEY = "base";
+    
+    private StatusReports() {
+    }
+    
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+    
+    /**
+     * Prepare a status report.
+     * @return report to send, or <code>null</code> if the central host
+     *         acknowledged the same state a moment ago
+     */
+    public static synchronized String prepare(Context context,
+            Map<String, String> state) {
+        final SharedPreferences prefs = getPrefs(context);
+        final int ackedVersion = prefs.getInt(ACKED_VERSION_PREF, 0);
+        final Map<String, String> ackedState = ackedVersion == 0 ? null
+                : decode(prefs.getString(ACKED_STATE_PREF, null));
+        final Map<String, String> delta = StateDelta.diff(ackedState, state);
+        if (delta.isEmpty()
+                && System.currentTimeMillis()
+                        - prefs.getLong(ACKED_TIME_PREF, 0) < CACHE_WINDOW) {
+            return null;
+        }
+        
+        final JSONObject report = new JSONObject();
+        try {
+            report.put(VERSION_KEY, ackedVersion + 1);
+            if (ackedState != null) {
+                report.put(BASE_KEY, ackedVersion);
+            }
+            for (final Map.Entry<String, String> e : delta.entrySet()) {
+                report.put(e.getKey(), e.getValue() == null ? JSONObject.NULL
+                        : e.getValue());
+            }
+        } catch (JSONException e) {
+            Log.wtf(TAG, "Failed to encode status report", e);
+            return null;
+        }
+        prefs.edit().putString(PENDING_STATE_PREF,
+            new JSONObject(state).toString()).commit();
+        return report.toString();
+    }
+    
+    /**
+     * Send the device state, as a delta against the last state acknowledged
+     * by the central host.
+     */
+    public static void send(Context context, DeviceApi api) {
+        final Map<String, String> state = DeviceStateSampler.get(context)
+                .snapshot();
+        try {
+            // a second attempt is made with the full state if the central
+            // host does not know the base state
+            for (int attempt = 0; attempt < 2; ++attempt) {
+                final String report = prepare(context, state);
+                if (report == null) {
+                    if (DEV) {
+                        Log.d(TAG, "Device state is unchanged: "
+                                + "central host is up-to-date");
+                    }
+                    return;
+                }
+                if (DEV) {
+                    Log.d(TAG, "Sending device state: " + report);
+                }
+                final int statusCode = api.post("status", DeviceApi
+                        .createJsonEntity(report));
+                if (statusCode == DeviceApi.HTTP_SC_OK) {
+                    commit(context);
+                    return;
+                }
+                if (statusCode != DeviceApi.HTTP_SC_CONFLICT) {
+                    if (DEV) {
+                        Log.w(TAG, "Failed to send device state: statusCode="
+                                + statusCode);
+                    }
+                    return;
+                }
+                reset(context);
+            }
+        } catch (Exception e) {
+            DeviceApi.logError(e);
+        }
+    }
+    
+    /**
+     * Acknowledge the report returned by the last call to
+     * {@link #prepare(Context, Map)}.
+     */
+    public static synchronized void commit(Context context) {
+        final SharedPreferences prefs = getPrefs(context);
+        final String pendingState = prefs.getString(PENDING_STATE_PREF, null);
+        if (pendingState == null) {
+            return;
+        }
+        prefs.edit().putString(ACKED_STATE_PREF, pendingState).putInt(
+            ACKED_VERSION_PREF, prefs.getInt(ACKED_VERSION_PREF, 0) + 1)
+                .putLong(ACKED_TIME_PREF, System.currentTimeMillis()).remove(
+                    PENDING_STATE_PREF).commit();
+    }
+    
+    /**
+     * Forget the acknowledged state, when the central host does not know it
+     * anymore: the next report holds the full device state.
+     */
+    public static synchronized void reset(Context context) {
+        getPrefs(context).edit().clear().commit();
+    }
+    
+    private static Map<String, String> decode(String state) {
+        final Map<String, String> values = new HashMap<String, String>(8);
+        if (state == null) {
+            return values;
+        }
+        try {
+            final JSONObject json = new JSONObject(state);
+            for (final Iterator<?> i = json.keys(); i.hasNext();) {
+                final String key = (String) i.next();
+                values.put(key, json.getString(key));
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Invalid acknowledged status: " + state, e);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid;
+
+import static com.pixmob.r2droid.Constants.DEV;
+import static com.pixmob.r2droid.Constants.TAG;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.pixmob.r2droid.core.ChunkedUpload;
+import com.pixmob.r2droid.core.Urls;
+
+/**
+ * Queue for command output uploads, such as diagnostics dumps or logs. Data
+ * is compressed to a spool file, and it is sent to the central host in
+ * chunks when the network is cheap to use: see {@link ChunkedUpload}. The
+ * upload state is stored in preferences, so that uploads are resumed after
+ * a network loss or when the process is restarted.
+ * @author Pixmob
+ */
+final class Uploads {
+    private static final long MAX_UPLOAD_DELAY = 30 * 60 * 1000;
+    private static final String PREFS_NAME = "uploads";
+    private static final String SPOOL_DIR = "uploads";
+    private static final Object LOCK = new Object();
+    
+    private Uploads() {
+    }
+    
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+    
+    private static File getSpoolDir(Context context) {
+        return context.getDir(SPOOL_DIR, Context.MODE_PRIVATE);
+    }
+    
+    /**
+     * Queue data for upload, and schedule a flush. Upload states are stored
+     * in preferences, which are cached per process: this method must be
+     * called from the main process.
+     * @param name data name
+     * @param data data to upload, which is closed when this method returns
+     */
+    public static void add(Context context, String name, InputStream data)
+            throws IOException {
+        // data is compressed to a temporary file out of the lock: list()
+        // only deletes files from the spool directory
+        final File compressedFile = File.createTempFile("upload", ".gz",
+            context.getCacheDir());
+        final ChunkedUpload upload;
+        try {
+            ChunkedUpload.compress(data, compressedFile);
+            synchronized (LOCK) {
+                upload = ChunkedUpload.create(Preferences.newRandomId(8),
+                    name, compressedFile, getSpoolDir(context));
+                getPrefs(context).edit().putString(upload.getId(),
+                    upload.encode()).commit();
+            }
+        } finally {
+            // the file is missing if it was moved to the spool directory
+            compressedFile.delete();
+        }
+        if (DEV) {
+            Log.d(TAG, "Upload queued: " + name + " (" + upload.getLength()
+                    + " bytes compressed)");
+        }
+        
+        scheduleFlush(context);
+    }
+    
+    /**
+     * Schedule a flush. Uploads are sent when the network is cheap to use,
+     * or when the maximum delay is reached.
+     */
+    public static void scheduleFlush(Context context) {
+        NetworkScheduler.schedule(context,
+            DeviceRegistrationService.ACTION_UPLOAD_DATA, MAX_UPLOAD_DELAY);
+    }
+    
+    /**
+     * Send pending uploads, chunk by chunk. The central host replies with the
+     * next expected offset, which is saved after each chunk: an interrupted
+     * upload is resumed from this offset.
+     * @return <code>true</code> if there is no more data to upload
+     */
+    public static boolean send(Context context, DeviceApi api) {
+        final byte[] chunk = new byte[ChunkedUpload.CHUNK_SIZE];
+        try {
+            for (final ChunkedUpload upload : list(context)) {
+                while (!upload.isComplete()) {
+                    final long offset = upload.getOffset();
+                    final int chunkLength = upload.readChunk(chunk);
+                    final String url = api.getUrl("upload") + "&id="
+                            + upload.getId() + "&name="
+                            + Urls.encode(upload.getName()) + "&offset="
+                            + offset + "&length=" + upload.getLength();
+                    if (DEV) {
+                        Log.d(TAG, "Uploading " + chunkLength + " bytes to "
+                                + url);
+                    }
+                    final HttpPost req = new HttpPost(url);
+                    final InputStreamEntity entity = new InputStreamEntity(
+                            new ByteArrayInputStream(chunk, 0, chunkLength),
+                            chunkLength);
+                    entity.setContentType("application/octet-stream");
+                    req.setEntity(entity);
+                    
+                    final HttpResponse resp = api.execute(req, "upload");
+                    final int statusCode = resp.getStatusLine()
+                            .getStatusCode();
+                    final HttpEntity respEntity = resp.getEntity();
+                    final String nextOffset = respEntity == null ? ""
+                            : EntityUtils.toString(respEntity).trim();
+                    // on conflict, the central host replies with the offset
+                    // it expects: the upload is resumed from there
+                    final boolean accepted = statusCode == DeviceApi.HTTP_SC_OK
+                            || statusCode == DeviceApi.HTTP_SC_CONFLICT;
+                    if (!accepted || nextOffset.length() == 0) {
+                        if (DEV) {
+                            Log.w(TAG, "Failed to upload data: statusCode="
+                                    + statusCode);
+                        }
+                        return false;
+                    }
+                    upload.setOffset(Long.parseLong(nextOffset));
+                    update(context, upload);
+                    if (upload.getOffset() == offset) {
+                        // the chunk was not stored: it would be sent again
+                        // and again
+                        if (DEV) {
+                            Log.w(TAG, "Upload offset did not move: "
+                                    + "statusCode=" + statusCode);
+                        }
+                        return false;
+                    }
+                }
+                remove(context, upload);
+                if (DEV) {
+                    Log.i(TAG, "Upload done: " + upload.getName());
+                }
+            }
+            return true;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid upload offset", e);
+        } catch (Exception e) {
+            DeviceApi.logError(e);
+        }
+        return false;
+    }
+    
+    /**
+     * Get pending uploads. Spool files without an upload state are deleted.
+     */
+    public static List<ChunkedUpload> list(Context context) {
+        final File spoolDir = getSpoolDir(context);
+        final List<ChunkedUpload> uploads = new ArrayList<ChunkedUpload>(2);
+        synchronized (LOCK) {
+            final SharedPreferences prefs = getPrefs(context);
+            final SharedPreferences.Editor editor = prefs.edit();
+            for (final Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+                final ChunkedUpload upload = ChunkedUpload.decode((String) e
+                        .getValue(), spoolDir);
+                if (upload == null) {
+                    Log.w(TAG, "Invalid upload: " + e.getValue());
+                    editor.remove(e.getKey());
+                } else {
+                    uploads.add(upload);
+                }
+            }
+            editor.commit();
+            
+            final File[] spoolFiles = spoolDir.listFiles();
+            if (spoolFiles != null) {
+                for (final File spoolFile : spoolFiles) {
+                    if (!isSpoolFile(spoolFile, uploads)) {
+                        spoolFile.delete();
+                    }
+                }
+            }
+        }
+        return uploads;
+    }
+    
+    private static boolean isSpoolFile(File file, List<ChunkedUpload> uploads) {
+        for (final ChunkedUpload upload : uploads) {
+            if (ChunkedUpload.isSpoolFile(file, upload.getId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Save the offset acknowledged by the central host.
+     */
+    public static void update(Context context, ChunkedUpload upload) {
+        synchronized (LOCK) {
+            getPrefs(context).edit().putString(upload.getId(),
+                upload.encode()).commit();
+        }
+    }
+    
+    /**
+     * Remove a completed upload.
+     */
+    public static void remove(Context context, ChunkedUpload upload) {
+        synchronized (LOCK) {
+            getPrefs(context).edit().remove(upload.getId()).commit();
+            upload.delete();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Requests sent for several accounts. Each account has its own client, with
+ * its own authentication session. Requests are sent concurrently: the time
+ * taken is about the time of the slowest request, instead of the sum of
+ * every request.
+ * <p>
+ * Clients are not known by this class: the application sends requests with
+ * its App Engine clients, and the load test with virtual devices.
+ * </p>
+ * @param <C> client type
+ * @author Pixmob
+ */
+public final class AccountRequests<C> {
+    private final ExecutorService executor;
+    private final Clients<C> clients;
+    
+    /**
+     * Create an instance.
+     * @param executor executor for concurrent requests
+     * @param clients clients by account
+     */
+    public AccountRequests(final ExecutorService executor,
+            final Clients<C> clients) {
+        this.executor = executor;
+        this.clients = clients;
+    }
+    
+    /**
+     * Run a task for several accounts.
+     * @return task results by account
+     */
+    public Map<String, Result> run(List<String> accounts, final Task<C> task)
+            throws InterruptedException {
+        final Map<String, Result> results = new HashMap<String, Result>(
+                accounts.size());
+        if (accounts.size() == 1) {
+            // a single account is handled in the current thread
+            final String account = accounts.get(0);
+            results.put(account, runForAccount(account, task));
+            return results;
+        }
+        
+        final Map<String, Future<Result>> futures = new HashMap<String, Future<Result>>(
+                accounts.size());
+        for (final String account : accounts) {
+            futures.put(account, executor.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return runForAccount(account, task);
+                }
+            }));
+        }
+        try {
+            for (final Map.Entry<String, Future<Result>> e : futures
+                    .entrySet()) {
+                try {
+                    results.put(e.getKey(), e.getValue().get());
+                } catch (ExecutionException ex) {
+                    // runForAccount() catches every exception: the cause is
+                    // an error
+                    final Throwable cause = ex.getCause();
+                    final Result result = new Result();
+                    result.error = cause instanceof Exception ? (Exception) cause
+                            : ex;
+                    results.put(e.getKey(), result);
+                }
+            }
+        } finally {
+            for (final Future<Result> future : futures.values()) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+    
+    private Result runForAccount(String account, Task<C> task) {
+        final Result result = new Result();
+        try {
+            result.statusCode = task.run(account, clients.get(account));
+        } catch (Exception e) {
+            result.error = e;
+        }
+        return result;
+    }
+    
+    /**
+     * Clients by account.
+     * @author Pixmob
+     */
+    public interface Clients<C> {
+        C get(String account);
+    }
+    
+    /**
+     * Request sent for an account.
+     * @author Pixmob
+     */
+    public interface Task<C> {
+        /**
+         * Send the request.
+         * @return response status code
+         */
+        int run(String account, C client) throws Exception;
+    }
+    
+    /**
+     * Result of an account request: a status code, or an error.
+     * @author Pixmob
+     */
+    public static final class Result {
+        public int statusCode = -1;
+        public Exception error;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+/**
+ * Exponential backoff: the delay is doubled after each failure, up to a
+ * maximum delay.
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ * @author Pixmob
+ */
+public final class Backoff {
+    private final long minDelay;
+    private final long maxDelay;
+    private long delay;
+    
+    public Backoff(final long minDelay, final long maxDelay) {
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay;
+        this.delay = minDelay;
+    }
+    
+    /**
+     * Get the delay to wait after a failure. The next delay is doubled.
+     */
+    public long next() {
+        final long current = delay;
+        delay = Math.min(maxDelay, delay * 2);
+        return current;
+    }
+    
+    /**
+     * Reset the delay after a success.
+     */
+    public void reset() {
+        delay = minDelay;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cooperative cancellation for a command. Commands register listeners which
+ * immediately stop any device output (vibrator, media player, text-to-speech)
+ * when the token is cancelled: a command does not rely on thread interruption
+ * to be stopped.
+ * @author Pixmob
+ */
+public final class CancellationToken {
+    private final List<Runnable> listeners = new ArrayList<Runnable>(2);
+    private volatile boolean cancelled;
+    private long cancelTime;
+    
+    /**
+     * Cancel the command. Listeners are invoked from the calling thread: if a
+     * listener fails, the other listeners are still invoked, and the first
+     * failure is thrown.
+     */
+    public void cancel() {
+        RuntimeException failure = null;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            cancelTime = now();
+            for (final Runnable listener : listeners) {
+                try {
+                    listener.run();
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            listeners.clear();
+            notifyAll();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+    
+    public boolean isCancelled() {
+        return cancelled;
+    }
+    
+    /**
+     * Get the time elapsed since this token was cancelled.
+     * @return elapsed time in milliseconds, or <code>-1</code> if this token
+     *         is not cancelled
+     */
+    public synchronized long getElapsedSinceCancel() {
+        if (!cancelled) {
+            return -1;
+        }
+        return now() - cancelTime;
+    }
+    
+    /**
+     * Add a listener, which is invoked when this token is cancelled. If this
+     * token is already cancelled, the listener is invoked immediately.
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!cancelled) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+    
+    /**
+     * Remove a listener. When this method returns, the listener is not
+     * running: resources used by this listener may be safely released.
+     */
+    public synchronized void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Throw an {@link InterruptedException} if this token is cancelled or if
+     * the current thread is interrupted.
+     */
+    public void throwIfCancelled() throws InterruptedException {
+        if (cancelled || Thread.interrupted()) {
+            throw new InterruptedException("Command cancelled");
+        }
+    }
+    
+    /**
+     * Wait until this token is cancelled or some time has elapsed.
+     * @throws InterruptedException if this token was cancelled
+     */
+    public synchronized void sleep(long millis) throws InterruptedException {
+        final long end = now() + millis;
+        long remaining = millis;
+        while (!cancelled && remaining > 0) {
+            wait(remaining);
+            remaining = end - now();
+        }
+        throwIfCancelled();
+    }
+    
+    /**
+     * Get a monotonic time in milliseconds.
+     */
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
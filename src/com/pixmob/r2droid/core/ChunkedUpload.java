@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Resumable upload. Data is compressed to a spool file, which is sent in
+ * chunks of {@link #CHUNK_SIZE} bytes. The offset acknowledged by the
+ * receiver is persisted with {@link #encode()}: an interrupted upload is
+ * resumed from this offset. Data is streamed from the source to the spool
+ * file, and from the spool file to the receiver: it is never held in memory.
+ * @author Pixmob
+ */
+public final class ChunkedUpload {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    private static final String SPOOL_FILE_SUFFIX = ".gz";
+    private final String id;
+    private final String name;
+    private final File spoolFile;
+    private final long length;
+    private long offset;
+    
+    private ChunkedUpload(final String id, final String name,
+            final File spoolFile) {
+        this.id = id;
+        this.name = name;
+        this.spoolFile = spoolFile;
+        this.length = spoolFile.length();
+    }
+    
+    /**
+     * Compress data to a file. An upload is then created from this file with
+     * {@link #create(String, String, File, File)}.
+     * @param data data to upload, which is closed when this method returns
+     */
+    public static void compress(InputStream data, File file)
+            throws IOException {
+        try {
+            final OutputStream out = new GZIPOutputStream(
+                    new FileOutputStream(file), 8192);
+            try {
+                final byte[] buf = new byte[8192];
+                for (int bytesRead; (bytesRead = data.read(buf)) != -1;) {
+                    out.write(buf, 0, bytesRead);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        } finally {
+            data.close();
+        }
+    }
+    
+    /**
+     * Create an upload. The compressed file is moved to the spool file in a
+     * directory.
+     * @param id upload identifier, which is used as the spool file name
+     * @param name data name
+     * @param compressedFile file written by
+     *            {@link #compress(InputStream, File)}, on the same file
+     *            system as the spool directory
+     */
+    public static ChunkedUpload create(String id, String name,
+            File compressedFile, File dir) throws IOException {
+        final File spoolFile = new File(dir, id + SPOOL_FILE_SUFFIX);
+        if (!compressedFile.renameTo(spoolFile)) {
+            throw new IOException("Failed to move " + compressedFile + " to "
+                    + spoolFile);
+        }
+        return new ChunkedUpload(id, name, spoolFile);
+    }
+    
+    /**
+     * Check if a file is the spool file of an upload.
+     */
+    public static boolean isSpoolFile(File file, String id) {
+        return file.getName().equals(id + SPOOL_FILE_SUFFIX);
+    }
+    
+    public String getId() {
+        return id;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Get the length of compressed data.
+     */
+    public long getLength() {
+        return length;
+    }
+    
+    /**
+     * Get the offset of the next chunk to send.
+     */
+    public long getOffset() {
+        return offset;
+    }
+    
+    /**
+     * Set the offset acknowledged by the receiver. An invalid offset restarts
+     * this upload from the beginning.
+     */
+    public void setOffset(long offset) {
+        this.offset = offset < 0 || offset > length ? 0 : offset;
+    }
+    
+    public boolean isComplete() {
+        return offset == length;
+    }
+    
+    /**
+     * Read the chunk starting at the current offset.
+     * @param buf chunk buffer, with a length of {@link #CHUNK_SIZE} bytes
+     * @return chunk length
+     */
+    public int readChunk(byte[] buf) throws IOException {
+        final int chunkLength = (int) Math.min(buf.length, length - offset);
+        final RandomAccessFile in = new RandomAccessFile(spoolFile, "r");
+        try {
+            in.seek(offset);
+            in.readFully(buf, 0, chunkLength);
+        } finally {
+            in.close();
+        }
+        return chunkLength;
+    }
+    
+    /**
+     * Delete the spool file.
+     */
+    public void delete() {
+        spoolFile.delete();
+    }
+    
+    /**
+     * Encode this upload as a string, for persistence.
+     */
+    public String encode() {
+        return offset + ":" + id + ":" + name;
+    }
+    
+    /**
+     * Decode an upload from a string returned by {@link #encode()}.
+     * @param dir spool file directory
+     * @return decoded upload, or <code>null</code> if the string is invalid
+     *         or if the spool file is missing
+     */
+    public static ChunkedUpload decode(String str, File dir) {
+        if (str == null) {
+            return null;
+        }
+        final String[] parts = str.split(":", 3);
+        if (parts.length != 3) {
+            return null;
+        }
+        final File spoolFile = new File(dir, parts[1] + SPOOL_FILE_SUFFIX);
+        if (!spoolFile.exists()) {
+            return null;
+        }
+        final ChunkedUpload upload = new ChunkedUpload(parts[1], parts[2],
+                spoolFile);
+        try {
+            upload.setOffset(Long.parseLong(parts[0]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return upload;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+/**
+ * Circuit breaker for requests to a remote host. The circuit is opened after
+ * consecutive failures: requests are rejected until a delay is elapsed. A
+ * single request is then allowed to probe the host: the circuit is closed if
+ * this request succeeds, or it is opened again for a longer delay.
+ * <p>
+ * Times are given by the caller, in milliseconds from an arbitrary origin.
+ * This class is not thread-safe.
+ * </p>
+ * @author Pixmob
+ */
+public final class CircuitBreaker {
+    public static final int CLOSED = 0;
+    public static final int OPEN = 1;
+    public static final int HALF_OPEN = 2;
+    private final int failureThreshold;
+    private final Backoff openDelay;
+    private int state = CLOSED;
+    private int failureCount;
+    private long openUntil;
+    
+    public CircuitBreaker(final int failureThreshold,
+            final long minOpenDelay, final long maxOpenDelay) {
+        this.failureThreshold = failureThreshold;
+        this.openDelay = new Backoff(minOpenDelay, maxOpenDelay);
+    }
+    
+    public int getState() {
+        return state;
+    }
+    
+    /**
+     * Get the time when the next probe is allowed, if the circuit is open.
+     */
+    public long getOpenUntil() {
+        return openUntil;
+    }
+    
+    /**
+     * Check if a request may be sent. A request is rejected while a probe is
+     * running: this method agrees with {@link #acquire(long)}.
+     */
+    public boolean isAvailable(long now) {
+        return state == CLOSED || (state == OPEN && now >= openUntil);
+    }
+    
+    /**
+     * Acquire the right to send a request. When the open delay is elapsed,
+     * the request is a probe: the circuit is half-open, and other requests
+     * are rejected until the probe is done.
+     * @return <code>false</code> if the request is rejected
+     */
+    public boolean acquire(long now) {
+        if (!isAvailable(now)) {
+            return false;
+        }
+        if (state == OPEN) {
+            state = HALF_OPEN;
+        }
+        return true;
+    }
+    
+    public void onSuccess() {
+        state = CLOSED;
+        failureCount = 0;
+        openDelay.reset();
+    }
+    
+    public void onFailure(long now) {
+        ++failureCount;
+        if (state == HALF_OPEN
+                || (state == CLOSED && failureCount >= failureThreshold)) {
+            state = OPEN;
+            openUntil = now + openDelay.next();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+/**
+ * Command sent to this device. Supported commands are:
+ * <ul>
+ * <li><code>ring</code>;</li>
+ * <li><code>vibrate</code>;</li>
+ * <li><code>say &lt;text&gt;</code>;</li>
+ * <li><code>say:&lt;language&gt; &lt;text&gt;</code>, where the language is
+ * a tag such as <code>fr-FR</code>;</li>
+ * <li><code>locate</code>;</li>
+ * <li><code>status</code>.</li>
+ * </ul>
+ * @author Pixmob
+ */
+public final class Command {
+    /**
+     * Unsupported or empty command: nothing is executed.
+     */
+    public static final int NONE = 0;
+    public static final int RING = 1;
+    public static final int VIBRATE = 2;
+    public static final int SAY = 3;
+    public static final int LOCATE = 4;
+    public static final int STATUS = 5;
+    private static final Command NONE_COMMAND = new Command(NONE, null, null);
+    private static final Command RING_COMMAND = new Command(RING, null, null);
+    private static final Command VIBRATE_COMMAND = new Command(VIBRATE, null,
+            null);
+    private static final Command LOCATE_COMMAND = new Command(LOCATE, null,
+            null);
+    private static final Command STATUS_COMMAND = new Command(STATUS, null,
+            null);
+    private final int type;
+    private final String text;
+    private final String language;
+    
+    private Command(final int type, final String text, final String language) {
+        this.type = type;
+        this.text = text;
+        this.language = language;
+    }
+    
+    /**
+     * Parse a command.
+     */
+    public static Command parse(String command) {
+        if ("ring".equals(command)) {
+            return RING_COMMAND;
+        }
+        if ("vibrate".equals(command)) {
+            return VIBRATE_COMMAND;
+        }
+        if ("locate".equals(command)) {
+            return LOCATE_COMMAND;
+        }
+        if ("status".equals(command)) {
+            return STATUS_COMMAND;
+        }
+        if (command.startsWith("say ")) {
+            final String text = command.substring("say ".length());
+            if (text.length() > 0) {
+                return new Command(SAY, text, null);
+            }
+        } else if (command.startsWith("say:")) {
+            // the language is set with the command: "say:fr-FR Bonjour"
+            final int i = command.indexOf(' ');
+            if (i > "say:".length() && i + 1 < command.length()) {
+                return new Command(SAY, command.substring(i + 1), command
+                        .substring("say:".length(), i));
+            }
+        }
+        return NONE_COMMAND;
+    }
+    
+    public int getType() {
+        return type;
+    }
+    
+    /**
+     * Get the text to speak, for a {@link #SAY} command.
+     */
+    public String getText() {
+        return text;
+    }
+    
+    /**
+     * Get the language tag, for a {@link #SAY} command.
+     * @return language tag, or <code>null</code> for using the device
+     *         language
+     */
+    public String getLanguage() {
+        return language;
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding for commands sent in a push message. A payload is
+ * a base64 string, holding a flag byte and a list of commands. Each command
+ * is made of a varint opcode, a varint argument count and arguments, which
+ * are UTF-8 strings prefixed by a varint length. The command list is
+ * compressed with deflate when the flag byte is set to {@link #FLAG_DEFLATE}.
+ * <p>
+ * An instance of this class decodes payloads in reused buffers: a decoder
+ * must not be shared between threads.
+ * </p>
+ * @author Pixmob
+ */
+public final class CommandCodec {
+    /**
+     * Command given as a string, in the first argument.
+     */
+    public static final int OP_RAW = 0;
+    public static final int OP_RING = 1;
+    public static final int OP_VIBRATE = 2;
+    /**
+     * Speak a text, given in the first argument.
+     */
+    public static final int OP_SAY = 3;
+    /**
+     * Speak a text: the language tag is the first argument, and the text is
+     * the second argument.
+     */
+    public static final int OP_SAY_LANGUAGE = 4;
+    public static final int FLAG_DEFLATE = 1;
+    private static final int DEFLATE_THRESHOLD = 64;
+    private static final String BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    private static final byte[] BASE64_VALUES = new byte[128];
+    static {
+        for (int i = 0; i < BASE64_VALUES.length; ++i) {
+            BASE64_VALUES[i] = -1;
+        }
+        for (int i = 0; i < BASE64_CHARS.length(); ++i) {
+            BASE64_VALUES[BASE64_CHARS.charAt(i)] = (byte) i;
+        }
+        // URL-safe alphabet
+        BASE64_VALUES['-'] = 62;
+        BASE64_VALUES['_'] = 63;
+    }
+    private final Inflater inflater = new Inflater(true);
+    private final StringBuilder command = new StringBuilder(128);
+    private byte[] raw = new byte[256];
+    private byte[] data = new byte[512];
+    private int length;
+    private int pos;
+    
+    /**
+     * Decode a payload. Commands are then read with {@link #hasNext()} and
+     * {@link #next()}.
+     * @throws IllegalArgumentException if the payload is invalid
+     */
+    public void reset(CharSequence payload) {
+        length = 0;
+        pos = 0;
+        
+        // base64 decoding
+        final int payloadLength = payload.length();
+        raw = ensureCapacity(raw, payloadLength * 3 / 4 + 1, 0);
+        int rawLength = 0;
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = 0; i < payloadLength; ++i) {
+            final char c = payload.charAt(i);
+            if (c == '=') {
+                break;
+            }
+            final int value = c < BASE64_VALUES.length ? BASE64_VALUES[c] : -1;
+            if (value == -1) {
+                throw new IllegalArgumentException(
+                        "Invalid base64 character in payload: " + c);
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                raw[rawLength++] = (byte) (bits >> bitCount);
+            }
+        }
+        if (rawLength == 0) {
+            throw new IllegalArgumentException("Empty payload");
+        }
+        
+        final int flags = raw[0];
+        if ((flags & FLAG_DEFLATE) == 0) {
+            data = ensureCapacity(data, rawLength - 1, 0);
+            System.arraycopy(raw, 1, data, 0, rawLength - 1);
+            length = rawLength - 1;
+        } else {
+            // a dummy byte is required by the inflater with no header
+            raw[rawLength] = 0;
+            inflater.reset();
+            inflater.setInput(raw, 1, rawLength);
+            try {
+                while (!inflater.finished()) {
+                    if (length == data.length) {
+                        data = ensureCapacity(data, data.length * 2, length);
+                    }
+                    final int n = inflater.inflate(data, length, data.length
+                            - length);
+                    if (n == 0 && (inflater.needsInput()
+                            || inflater.needsDictionary())) {
+                        throw new IllegalArgumentException(
+                                "Truncated compressed payload");
+                    }
+                    length += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException(
+                        "Invalid compressed payload", e);
+            }
+        }
+    }
+    
+    /**
+     * Check if there is a command to read.
+     */
+    public boolean hasNext() {
+        return pos < length;
+    }
+    
+    /**
+     * Read the next command.
+     * @return command string, as parsed by {@link Command#parse(String)}
+     * @throws IllegalArgumentException if the command is invalid
+     */
+    public String next() {
+        final int opcode = readVarint();
+        final int argCount = readVarint();
+        command.setLength(0);
+        switch (opcode) {
+            case OP_RAW:
+                readArgs(argCount, 1, ' ');
+                break;
+            case OP_RING:
+                command.append("ring");
+                readArgs(argCount, 0, ' ');
+                break;
+            case OP_VIBRATE:
+                command.append("vibrate");
+                readArgs(argCount, 0, ' ');
+                break;
+            case OP_SAY:
+                command.append("say ");
+                readArgs(argCount, 1, ' ');
+                break;
+            case OP_SAY_LANGUAGE:
+                command.append("say:");
+                readArgs(argCount, 2, ' ');
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported opcode: "
+                        + opcode);
+        }
+        return command.toString();
+    }
+    
+    private void readArgs(int argCount, int expectedArgCount, char separator) {
+        if (argCount != expectedArgCount) {
+            throw new IllegalArgumentException("Invalid argument count: "
+                    + argCount);
+        }
+        for (int i = 0; i < argCount; ++i) {
+            if (i != 0) {
+                command.append(separator);
+            }
+            readString();
+        }
+    }
+    
+    private int readVarint() {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (pos >= length) {
+                throw new IllegalArgumentException("Truncated payload");
+            }
+            final int b = data[pos++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Invalid varint");
+    }
+    
+    /**
+     * Read a UTF-8 string, which is appended to the command buffer.
+     */
+    private void readString() {
+        final int stringLength = readVarint();
+        final int end = pos + stringLength;
+        if (stringLength < 0 || end > length) {
+            throw new IllegalArgumentException("Truncated string");
+        }
+        while (pos < end) {
+            final int b = data[pos++] & 0xff;
+            int codePoint;
+            int extraBytes;
+            if (b < 0x80) {
+                codePoint = b;
+                extraBytes = 0;
+            } else if ((b & 0xe0) == 0xc0) {
+                codePoint = b & 0x1f;
+                extraBytes = 1;
+            } else if ((b & 0xf0) == 0xe0) {
+                codePoint = b & 0x0f;
+                extraBytes = 2;
+            } else if ((b & 0xf8) == 0xf0) {
+                codePoint = b & 0x07;
+                extraBytes = 3;
+            } else {
+                throw new IllegalArgumentException("Invalid UTF-8 string");
+            }
+            if (pos + extraBytes > end) {
+                throw new IllegalArgumentException("Invalid UTF-8 string");
+            }
+            for (int i = 0; i < extraBytes; ++i) {
+                codePoint = (codePoint << 6) | (data[pos++] & 0x3f);
+            }
+            if (codePoint >= 0x10000) {
+                codePoint -= 0x10000;
+                command.append((char) (0xd800 + (codePoint >> 10)));
+                command.append((char) (0xdc00 + (codePoint & 0x3ff)));
+            } else {
+                command.append((char) codePoint);
+            }
+        }
+    }
+    
+    private static byte[] ensureCapacity(byte[] buf, int capacity, int length) {
+        if (buf.length >= capacity + 1) {
+            return buf;
+        }
+        final byte[] newBuf = new byte[Math.max(capacity + 1, buf.length * 2)];
+        System.arraycopy(buf, 0, newBuf, 0, length);
+        return newBuf;
+    }
+    
+    /**
+     * Encode commands as a payload. Long command lists are compressed.
+     */
+    public static String encode(List<String> commands) {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(64);
+        for (final String cmd : commands) {
+            if ("ring".equals(cmd)) {
+                writeVarint(buf, OP_RING);
+                writeVarint(buf, 0);
+            } else if ("vibrate".equals(cmd)) {
+                writeVarint(buf, OP_VIBRATE);
+                writeVarint(buf, 0);
+            } else if (cmd.startsWith("say ")) {
+                writeVarint(buf, OP_SAY);
+                writeVarint(buf, 1);
+                writeString(buf, cmd.substring("say ".length()));
+            } else if (cmd.startsWith("say:") && cmd.indexOf(' ') != -1) {
+                final int i = cmd.indexOf(' ');
+                writeVarint(buf, OP_SAY_LANGUAGE);
+                writeVarint(buf, 2);
+                writeString(buf, cmd.substring("say:".length(), i));
+                writeString(buf, cmd.substring(i + 1));
+            } else {
+                writeVarint(buf, OP_RAW);
+                writeVarint(buf, 1);
+                writeString(buf, cmd);
+            }
+        }
+        
+        byte[] data = buf.toByteArray();
+        int flags = 0;
+        if (data.length > DEFLATE_THRESHOLD) {
+            final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION,
+                    true);
+            deflater.setInput(data);
+            deflater.finish();
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+                    data.length);
+            final byte[] chunk = new byte[256];
+            while (!deflater.finished()) {
+                final int n = deflater.deflate(chunk);
+                compressed.write(chunk, 0, n);
+            }
+            deflater.end();
+            if (compressed.size() < data.length) {
+                data = compressed.toByteArray();
+                flags = FLAG_DEFLATE;
+            }
+        }
+        
+        final StringBuilder payload = new StringBuilder(
+                (data.length + 1) * 4 / 3 + 4);
+        int bits = flags;
+        int bitCount = 8;
+        for (int i = 0; i <= data.length; ++i) {
+            if (i != 0) {
+                bits = (bits << 8) | (data[i - 1] & 0xff);
+                bitCount += 8;
+            }
+            while (bitCount >= 6) {
+                bitCount -= 6;
+                payload.append(BASE64_CHARS.charAt((bits >> bitCount) & 0x3f));
+            }
+        }
+        if (bitCount > 0) {
+            payload.append(BASE64_CHARS.charAt((bits << (6 - bitCount)) & 0x3f));
+        }
+        return payload.toString();
+    }
+    
+    private static void writeVarint(ByteArrayOutputStream buf, int value) {
+        while ((value & ~0x7f) != 0) {
+            buf.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf.write(value);
+    }
+    
+    private static void writeString(ByteArrayOutputStream buf, String str) {
+        final byte[] bytes;
+        try {
+            bytes = str.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 encoding is unavailable", e);
+        }
+        writeVarint(buf, bytes.length);
+        buf.write(bytes, 0, bytes.length);
+    }
+}
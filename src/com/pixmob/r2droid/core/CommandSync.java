@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+/**
+ * Sync of pending commands with the central host. Every command sent since
+ * the last acknowledged cursor is fetched; the cursor is sent with the next
+ * request, and the central host removes acknowledged commands.
+ * <p>
+ * Each fetched command may hold a sequence number, and the cursor
+ * acknowledging it: the cursor is saved after each command. A command
+ * fetched again is dropped with its sequence number, by the sink.
+ * </p>
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ * @author Pixmob
+ */
+public final class CommandSync {
+    private final Sink sink;
+    private String cursor;
+    
+    /**
+     * Create an instance.
+     * @param cursor last acknowledged cursor, or <code>null</code>
+     */
+    public CommandSync(final Sink sink, final String cursor) {
+        this.sink = sink;
+        this.cursor = cursor;
+    }
+    
+    public String getCursor() {
+        return cursor;
+    }
+    
+    /**
+     * Get the URL for fetching pending commands.
+     * @param commandsUrl URL of the commands endpoint for this device
+     */
+    public String getUrl(String commandsUrl) {
+        return cursor == null ? commandsUrl : commandsUrl + "&cursor="
+                + Urls.encode(cursor);
+    }
+    
+    /**
+     * Handle a fetched command. Commands are handled in order.
+     * @param seq command sequence number, or <code>null</code>
+     * @param commandCursor cursor acknowledging this command, or
+     *            <code>null</code>
+     */
+    public void onCommand(String seq, String commandCursor, String command) {
+        sink.onCommand(seq, command);
+        acknowledge(commandCursor);
+    }
+    
+    /**
+     * Every fetched command was handled.
+     * @param lastCursor cursor acknowledging every command, or
+     *            <code>null</code>
+     */
+    public void onDone(String lastCursor) {
+        acknowledge(lastCursor);
+    }
+    
+    private void acknowledge(String newCursor) {
+        if (newCursor != null && !newCursor.equals(cursor)) {
+            cursor = newCursor;
+            sink.onCursor(newCursor);
+        }
+    }
+    
+    /**
+     * Receiver for fetched commands.
+     * @author Pixmob
+     */
+    public interface Sink {
+        /**
+         * Execute a command, unless a command with the same sequence number
+         * was already received.
+         * @param seq command sequence number, or <code>null</code>
+         */
+        void onCommand(String seq, String command);
+        
+        /**
+         * Save a cursor: this cursor is sent with the next request.
+         */
+        void onCursor(String cursor);
+    }
+}
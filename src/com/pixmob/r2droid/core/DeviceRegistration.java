@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.pixmob.r2droid.core.AccountRequests.Result;
+
+/**
+ * Registration of a device to the central host, for every account. The
+ * registration id is sent, checked, or removed with requests to the device
+ * API. Requests for every account are sent with {@link AccountRequests}.
+ * @param <C> client type
+ * @author Pixmob
+ */
+public final class DeviceRegistration<C> {
+    public static final int HTTP_SC_OK = 200;
+    public static final int HTTP_SC_NOT_FOUND = 404;
+    private final String baseUrl;
+    private final AccountRequests<C> requests;
+    private final Host<C> host;
+    
+    /**
+     * Create an instance.
+     * @param baseUrl central host URL, such as
+     *            <code>https://r2droid.appspot.com</code>
+     */
+    public DeviceRegistration(final String baseUrl,
+            final AccountRequests<C> requests, final Host<C> host) {
+        this.baseUrl = baseUrl;
+        this.requests = requests;
+        this.host = host;
+    }
+    
+    /**
+     * Send the registration id to the central host, for every account.
+     * @return results by account
+     */
+    public Map<String, Result> register(List<String> accounts,
+            final String regId, final String deviceName)
+            throws InterruptedException {
+        return requests.run(accounts, new AccountRequests.Task<C>() {
+            @Override
+            public int run(String account, C client) throws Exception {
+                return sendRegistration(account, client, regId, deviceName);
+            }
+        });
+    }
+    
+    /**
+     * Check the registration known by the central host, for every account.
+     * The registration is only sent again if the registration id was
+     * changed, or if the central host does not know this device for an
+     * account.
+     * @param results filled with results by account
+     * @return <code>true</code> if the registration is consistent: every
+     *         account was checked, and no registration was sent again
+     */
+    public boolean reconcile(List<String> accounts, final String regId,
+            final boolean regIdChanged, final String deviceName,
+            Map<String, Result> results) throws InterruptedException {
+        final AtomicBoolean registered = new AtomicBoolean();
+        results.putAll(requests.run(accounts, new AccountRequests.Task<C>() {
+            @Override
+            public int run(String account, C client) throws Exception {
+                if (!regIdChanged && host.isConfirmed(account, regId)) {
+                    final int statusCode = host.get(client, baseUrl
+                            + "/api/1/device?regid=" + Urls.encode(regId),
+                        "device");
+                    if (statusCode != HTTP_SC_NOT_FOUND) {
+                        return statusCode;
+                    }
+                }
+                host.onOutOfDate(account, regId);
+                registered.set(true);
+                return sendRegistration(account, client, regId, deviceName);
+            }
+        }));
+        
+        boolean consistent = !registered.get();
+        for (final Result result : results.values()) {
+            if (result.error != null || result.statusCode != HTTP_SC_OK) {
+                consistent = false;
+            }
+        }
+        return consistent;
+    }
+    
+    /**
+     * Remove this device from the central host, for every account.
+     * @return results by account
+     */
+    public Map<String, Result> unregister(List<String> accounts,
+            final String regId) throws InterruptedException {
+        return requests.run(accounts, new AccountRequests.Task<C>() {
+            @Override
+            public int run(String account, C client) throws Exception {
+                return host.get(client, baseUrl + "/api/1/unregister?regid="
+                        + Urls.encode(regId), "unregister");
+            }
+        });
+    }
+    
+    private int sendRegistration(String account, C client, String regId,
+            String deviceName) throws Exception {
+        final int statusCode = host.get(client, baseUrl
+                + "/api/1/register?regid=" + Urls.encode(regId) + "&name="
+                + Urls.encode(deviceName), "register");
+        if (statusCode == HTTP_SC_OK) {
+            host.onConfirmed(account, regId);
+        }
+        return statusCode;
+    }
+    
+    /**
+     * Requests to the central host, and registration state of the device.
+     * @author Pixmob
+     */
+    public interface Host<C> {
+        /**
+         * Send a request with no reply content.
+         * @param endpoint endpoint name, used for tracking latency
+         * @return response status code
+         */
+        int get(C client, String url, String endpoint) throws Exception;
+        
+        /**
+         * Check if the central host accepted a registration id for an
+         * account.
+         */
+        boolean isConfirmed(String account, String regId);
+        
+        /**
+         * The central host accepted a registration id for an account.
+         */
+        void onConfirmed(String account, String regId);
+        
+        /**
+         * The registration id is sent again for an account, since the
+         * central host does not know it.
+         */
+        void onOutOfDate(String account, String regId);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+/**
+ * Adaptive heartbeat interval for a persistent connection. Network address
+ * translators drop idle connections after a timeout, which depends on the
+ * network. The interval is increased after each successful heartbeat, until
+ * the connection is dropped: the interval is then set to the last
+ * successful value, and it is kept for a while before probing again.
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ * @author Pixmob
+ */
+public final class HeartbeatPolicy {
+    public static final long MIN_INTERVAL = 60 * 1000;
+    public static final long MAX_INTERVAL = 28 * 60 * 1000;
+    private static final long INITIAL_INTERVAL = 4 * 60 * 1000;
+    private static final long STEP = 2 * 60 * 1000;
+    /**
+     * Number of successful heartbeats before probing a longer interval, once
+     * a timeout was found.
+     */
+    private static final int STABLE_COUNT = 30;
+    private long interval = INITIAL_INTERVAL;
+    private long lastSuccessfulInterval;
+    private int successCount;
+    private boolean stable;
+    
+    /**
+     * Get the interval to use for the next heartbeat.
+     */
+    public long getInterval() {
+        return interval;
+    }
+    
+    /**
+     * Notify this policy that the connection was alive after a heartbeat
+     * interval.
+     */
+    public void onSuccess(long usedInterval) {
+        lastSuccessfulInterval = Math.max(lastSuccessfulInterval, usedInterval);
+        ++successCount;
+        if (!stable || successCount >= STABLE_COUNT) {
+            stable = false;
+            successCount = 0;
+            interval = Math.min(MAX_INTERVAL, lastSuccessfulInterval + STEP);
+        }
+    }
+    
+    /**
+     * Notify this policy that the connection was dropped while it was idle
+     * for a heartbeat interval.
+     */
+    public void onTimeout(long usedInterval) {
+        if (usedInterval <= lastSuccessfulInterval) {
+            // this interval used to work: the network was changed
+            lastSuccessfulInterval = 0;
+        }
+        stable = true;
+        successCount = 0;
+        interval = Math.max(MIN_INTERVAL, lastSuccessfulInterval != 0
+                ? lastSuccessfulInterval : usedInterval / 2);
+    }
+    
+    /**
+     * Encode this policy as a string, for persistence.
+     */
+    public String encode() {
+        return interval + ":" + lastSuccessfulInterval + ":"
+                + (stable ? 1 : 0);
+    }
+    
+    /**
+     * Decode a policy from a string returned by {@link #encode()}.
+     * @return decoded policy, or a new policy if the string is invalid
+     */
+    public static HeartbeatPolicy decode(String str) {
+        final HeartbeatPolicy policy = new HeartbeatPolicy();
+        if (str == null) {
+            return policy;
+        }
+        final String[] parts = str.split(":");
+        if (parts.length != 3) {
+            return policy;
+        }
+        try {
+            final long interval = Long.parseLong(parts[0]);
+            if (interval >= MIN_INTERVAL && interval <= MAX_INTERVAL) {
+                policy.interval = interval;
+                policy.lastSuccessfulInterval = Long.parseLong(parts[1]);
+                policy.stable = "1".equals(parts[2]);
+            }
+        } catch (NumberFormatException e) {
+            return new HeartbeatPolicy();
+        }
+        return policy;
+    }
+}
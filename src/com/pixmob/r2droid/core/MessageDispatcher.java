@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+/**
+ * Dispatcher for push messages. A message may hold:
+ * <ul>
+ * <li><code>seq</code>: a sequence number, for dropping duplicate messages;</li>
+ * <li><code>type</code>: set to <code>sync</code> for fetching pending
+ * commands from the central host;</li>
+ * <li><code>c</code>: commands with a compact encoding (see
+ * {@link CommandCodec});</li>
+ * <li><code>command</code>: a single command.</li>
+ * </ul>
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ * @author Pixmob
+ */
+public final class MessageDispatcher {
+    private static final String TYPE_SYNC = "sync";
+    private final CommandCodec codec = new CommandCodec();
+    private final MessageWindow window;
+    
+    /**
+     * Create a dispatcher.
+     * @param window sequence numbers of messages already received
+     */
+    public MessageDispatcher(final MessageWindow window) {
+        this.window = window;
+    }
+    
+    public MessageWindow getWindow() {
+        return window;
+    }
+    
+    /**
+     * Dispatch a message. Message fields may be <code>null</code>.
+     * @return <code>false</code> if this message was dropped, since it was
+     *         already received
+     */
+    public boolean dispatch(String seq, String type, String payload,
+            String command, Sink sink) {
+        if (!acceptMessage(seq, sink)) {
+            return false;
+        }
+        
+        if (TYPE_SYNC.equals(type)) {
+            sink.onSync();
+        } else if (payload != null) {
+            try {
+                codec.reset(payload);
+                while (codec.hasNext()) {
+                    sink.onCommand(codec.next());
+                }
+            } catch (IllegalArgumentException e) {
+                sink.onError("Invalid command payload: " + payload, e);
+            }
+        } else if (command != null) {
+            sink.onCommand(command);
+        }
+        return true;
+    }
+    
+    /**
+     * Check if a message was never received. A message may be delivered
+     * more than once: messages with a sequence number are only handled once.
+     */
+    private boolean acceptMessage(String seqStr, Sink sink) {
+        if (seqStr == null) {
+            return true;
+        }
+        final long seq;
+        try {
+            seq = Long.parseLong(seqStr);
+        } catch (NumberFormatException e) {
+            sink.onError("Invalid message sequence number: " + seqStr, e);
+            return true;
+        }
+        return window.accept(seq);
+    }
+    
+    /**
+     * Receiver for dispatched messages.
+     * @author Pixmob
+     */
+    public interface Sink {
+        /**
+         * Pending commands should be fetched from the central host.
+         */
+        void onSync();
+        
+        void onCommand(String command);
+        
+        void onError(String message, Exception cause);
+    }
+}
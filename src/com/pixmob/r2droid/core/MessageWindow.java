@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+/**
+ * Sliding window of message sequence numbers. This window keeps track of the
+ * last {@link #SIZE} sequence numbers below the highest sequence number
+ * seen so far (the high-water mark), in a ring of bits. A message is rejected
+ * if it was already seen, or if it is older than the window.
+ * <p>
+ * This window is persisted for every message: it is encoded as the
+ * high-water mark and runs of seen and unseen sequence numbers below it.
+ * Sequence numbers are mostly received in order, so that the encoded window
+ * is a few numbers long.
+ * </p>
+ * @author Pixmob
+ */
+public final class MessageWindow {
+    /**
+     * Number of sequence numbers tracked by this window.
+     */
+    public static final int SIZE = 1024;
+    private static final int WORD_COUNT = SIZE / 64;
+    private final long[] bits = new long[WORD_COUNT];
+    private long highWaterMark = -1;
+    
+    /**
+     * Check if a message should be accepted, and mark it as seen.
+     * @return <code>true</code> if this message was never seen before, or
+     *         <code>false</code> if this message is a duplicate or if it is
+     *         too old
+     */
+    public boolean accept(long seq) {
+        if (seq < 0) {
+            return false;
+        }
+        if (seq > highWaterMark) {
+            // slide the window: bits between the previous high-water mark
+            // and this sequence number are cleared
+            final long gap = seq - highWaterMark;
+            if (highWaterMark == -1 || gap >= SIZE) {
+                for (int i = 0; i < WORD_COUNT; ++i) {
+                    bits[i] = 0;
+                }
+            } else {
+                for (long i = highWaterMark + 1; i < seq; ++i) {
+                    clear(i);
+                }
+            }
+            highWaterMark = seq;
+            set(seq);
+            return true;
+        }
+        if (highWaterMark - seq >= SIZE) {
+            // too old to know: this message is rejected
+            return false;
+        }
+        if (isSet(seq)) {
+            return false;
+        }
+        set(seq);
+        return true;
+    }
+    
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+    
+    private boolean isSet(long seq) {
+        final int bit = (int) (seq % SIZE);
+        return (bits[bit >> 6] & (1L << (bit & 63))) != 0;
+    }
+    
+    private void set(long seq) {
+        final int bit = (int) (seq % SIZE);
+        bits[bit >> 6] |= 1L << (bit & 63);
+    }
+    
+    private void clear(long seq) {
+        final int bit = (int) (seq % SIZE);
+        bits[bit >> 6] &= ~(1L << (bit & 63));
+    }
+    
+    /**
+     * Encode this window as a string, for persistence: the high-water mark
+     * is followed by the lengths of alternate runs of seen and unseen
+     * sequence numbers, from the high-water mark down. A trailing run of
+     * unseen sequence numbers is not written.
+     */
+    public String encode() {
+        if (highWaterMark == -1) {
+            return "-1";
+        }
+        final StringBuilder buf = new StringBuilder(32);
+        buf.append(highWaterMark);
+        boolean seen = true;
+        int run = 0;
+        for (int i = 0; i < SIZE; ++i) {
+            final long seq = highWaterMark - i;
+            if ((seq >= 0 && isSet(seq)) != seen) {
+                buf.append(',').append(run);
+                seen = !seen;
+                run = 0;
+            }
+            ++run;
+        }
+        if (seen) {
+            buf.append(',').append(run);
+        }
+        return buf.toString();
+    }
+    
+    /**
+     * Decode a window from a string returned by {@link #encode()}. Windows
+     * encoded as a list of words by previous versions are supported.
+     * @return decoded window, or an empty window if the string is invalid
+     */
+    public static MessageWindow decode(String str) {
+        if (str == null) {
+            return new MessageWindow();
+        }
+        try {
+            return str.indexOf(':') == -1 ? decodeRuns(str)
+                    : decodeWords(str);
+        } catch (NumberFormatException e) {
+            return new MessageWindow();
+        }
+    }
+    
+    private static MessageWindow decodeRuns(String str) {
+        final MessageWindow window = new MessageWindow();
+        final String[] parts = str.split(",");
+        final long highWaterMark = Long.parseLong(parts[0]);
+        if (highWaterMark < -1 || highWaterMark == -1 && parts.length != 1) {
+            return window;
+        }
+        window.highWaterMark = highWaterMark;
+        long seq = highWaterMark;
+        int total = 0;
+        boolean seen = true;
+        for (int i = 1; i < parts.length; ++i) {
+            final int run = Integer.parseInt(parts[i]);
+            total += run;
+            if (run < 0 || total > SIZE) {
+                return new MessageWindow();
+            }
+            for (int j = 0; j < run; ++j, --seq) {
+                if (seen && seq >= 0) {
+                    window.set(seq);
+                }
+            }
+            seen = !seen;
+        }
+        return window;
+    }
+    
+    private static MessageWindow decodeWords(String str) {
+        final MessageWindow window = new MessageWindow();
+        final String[] parts = str.split(":");
+        if (parts.length != WORD_COUNT + 1) {
+            return window;
+        }
+        window.highWaterMark = Long.parseLong(parts[0]);
+        for (int i = 0; i < WORD_COUNT; ++i) {
+            // parse unsigned 64-bit hexadecimal values
+            final String word = parts[i + 1];
+            if (word.length() > 8) {
+                final int split = word.length() - 8;
+                window.bits[i] = Long.parseLong(word.substring(0, split),
+                    16) << 32
+                        | Long.parseLong(word.substring(split), 16);
+            } else {
+                window.bits[i] = Long.parseLong(word, 16);
+            }
+        }
+        return window;
+    }
+}
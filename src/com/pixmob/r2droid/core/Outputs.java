@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outputs of long-running commands: a media player, the vibrator or a
+ * text-to-speech engine. A command starts its output and waits for its end.
+ * The output is stopped by a cancellation listener, in the thread which
+ * cancels the command: the device is silenced without waiting for the
+ * command thread.
+ * <p>
+ * The cancellation latency of these methods is measured by
+ * <code>tools/CancelLatencyCheck.java</code>.
+ * </p>
+ * @author Pixmob
+ */
+public final class Outputs {
+    private Outputs() {
+    }
+    
+    /**
+     * Play an output until it completes, until some time has elapsed, or until
+     * the command is cancelled. The output is stopped if it did not complete.
+     * @param maxDuration maximum duration in milliseconds, or <code>0</code>
+     *            for waiting until the output completes
+     * @throws InterruptedException if the command was cancelled
+     */
+    public static void play(final Output output, long maxDuration,
+            CancellationToken token) throws InterruptedException {
+        final CountDownLatch barrier = new CountDownLatch(1);
+        final boolean[] completed = new boolean[1];
+        final Runnable completion = new Runnable() {
+            @Override
+            public void run() {
+                completed[0] = true;
+                barrier.countDown();
+            }
+        };
+        // the output is only stopped once it is started: the token may be
+        // cancelled before the output is started
+        final boolean[] started = new boolean[1];
+        final Runnable cancelListener = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (started) {
+                    if (started[0]) {
+                        output.stop();
+                    }
+                }
+                barrier.countDown();
+            }
+        };
+        
+        try {
+            token.addListener(cancelListener);
+            synchronized (started) {
+                token.throwIfCancelled();
+                output.start(completion);
+                started[0] = true;
+            }
+            if (maxDuration == 0) {
+                barrier.await();
+            } else {
+                barrier.await(maxDuration, TimeUnit.MILLISECONDS);
+            }
+            token.throwIfCancelled();
+        } finally {
+            token.removeListener(cancelListener);
+            synchronized (started) {
+                if (started[0] && !completed[0]) {
+                    output.stop();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Speak text chunks. Each chunk is queued as a separate utterance: the
+     * first chunk is spoken while the next ones are synthesized. Only a few
+     * chunks are queued ahead, so that the command is cancelled between two
+     * chunks.
+     * @param barrier barrier notified by the speaker when an utterance is
+     *            completed
+     * @param maxQueued maximum number of chunks queued in the speaker
+     * @throws InterruptedException if the command was cancelled
+     */
+    public static void speak(final Speaker speaker,
+            final UtteranceBarrier barrier, List<String> chunks,
+            int maxQueued, CancellationToken token)
+            throws InterruptedException {
+        final Runnable cancelListener = new Runnable() {
+            @Override
+            public void run() {
+                speaker.stop();
+                barrier.releaseAll();
+            }
+        };
+        final int chunkCount = chunks.size();
+        final CountDownLatch[] chunkBarriers = new CountDownLatch[chunkCount];
+        try {
+            token.addListener(cancelListener);
+            int queued = 0;
+            for (int i = 0; i < chunkCount; ++i) {
+                while (queued < chunkCount && queued < i + maxQueued) {
+                    token.throwIfCancelled();
+                    final String utteranceId = "speak" + queued;
+                    chunkBarriers[queued] = barrier.expect(utteranceId);
+                    speaker.speak(chunks.get(queued), utteranceId);
+                    ++queued;
+                }
+                chunkBarriers[i].await();
+                token.throwIfCancelled();
+            }
+        } finally {
+            token.removeListener(cancelListener);
+        }
+    }
+    
+    /**
+     * Output of a command.
+     * @author Pixmob
+     */
+    public interface Output {
+        /**
+         * Start this output.
+         * @param completion run when this output ends by itself
+         */
+        void start(Runnable completion);
+        
+        /**
+         * Stop this output. This method may be called more than once.
+         */
+        void stop();
+    }
+    
+    /**
+     * Text-to-speech output of a command.
+     * @author Pixmob
+     */
+    public interface Speaker {
+        /**
+         * Queue a text. The barrier is notified with the utterance id when
+         * the text is spoken.
+         */
+        void speak(String text, String utteranceId);
+        
+        /**
+         * Stop speaking, and drop queued texts.
+         */
+        void stop();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Split a text into chunks, which are spoken one after the other. Chunks are
+ * built from sentences: long sentences are split on clause boundaries.
+ * @author Pixmob
+ */
+public final class SpeechChunker {
+    /**
+     * Maximum length for a chunk. A sentence is split if it is longer than
+     * this value.
+     */
+    public static final int MAX_CHUNK_LENGTH = 160;
+    private static final String CLAUSE_SEPARATORS = ",;:";
+    
+    private SpeechChunker() {
+    }
+    
+    /**
+     * Split a text into chunks.
+     * @return chunks, in the text order (never empty, unless the text is
+     *         blank)
+     */
+    public static List<String> split(String text, Locale locale) {
+        final List<String> chunks = new ArrayList<String>(4);
+        final BreakIterator sentences = BreakIterator
+                .getSentenceInstance(locale);
+        sentences.setText(text);
+        int start = sentences.first();
+        int end = sentences.next();
+        while (end != BreakIterator.DONE) {
+            splitSentence(text, start, end, chunks);
+            start = end;
+            end = sentences.next();
+        }
+        return chunks;
+    }
+    
+    private static void splitSentence(String text, int start, int end,
+            List<String> chunks) {
+        while (end - start > MAX_CHUNK_LENGTH) {
+            // find the last clause boundary, or the last word boundary
+            int split = -1;
+            final int max = start + MAX_CHUNK_LENGTH;
+            for (int i = max - 1; i > start && split == -1; --i) {
+                if (CLAUSE_SEPARATORS.indexOf(text.charAt(i)) != -1) {
+                    split = i + 1;
+                }
+            }
+            for (int i = max - 1; i > start && split == -1; --i) {
+                if (Character.isWhitespace(text.charAt(i))) {
+                    split = i + 1;
+                }
+            }
+            if (split == -1) {
+                split = max;
+            }
+            addChunk(text.substring(start, split), chunks);
+            start = split;
+        }
+        addChunk(text.substring(start, end), chunks);
+    }
+    
+    private static void addChunk(String chunk, List<String> chunks) {
+        final String trimmed = chunk.trim();
+        if (trimmed.length() != 0) {
+            chunks.add(trimmed);
+        }
+    }
+}
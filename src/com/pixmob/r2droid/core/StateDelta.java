@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Delta encoding for a device state, which is a set of named values. A delta
+ * holds the values which changed since a base state: a removed value is
+ * mapped to <code>null</code>.
+ * @author Pixmob
+ */
+public final class StateDelta {
+    private StateDelta() {
+    }
+    
+    /**
+     * Compute the delta between two states.
+     * @param base base state, or <code>null</code> if there is no base state:
+     *            the delta is then the full state
+     * @param current current state
+     * @return values which changed, which is empty if both states are equal
+     */
+    public static Map<String, String> diff(Map<String, String> base,
+            Map<String, String> current) {
+        final Map<String, String> delta = new HashMap<String, String>(4);
+        for (final Map.Entry<String, String> e : current.entrySet()) {
+            if (base == null || !e.getValue().equals(base.get(e.getKey()))) {
+                delta.put(e.getKey(), e.getValue());
+            }
+        }
+        if (base != null) {
+            for (final String key : base.keySet()) {
+                if (!current.containsKey(key)) {
+                    delta.put(key, null);
+                }
+            }
+        }
+        return delta;
+    }
+    
+    /**
+     * Apply a delta to a state.
+     */
+    public static void apply(Map<String, String> state,
+            Map<String, String> delta) {
+        for (final Map.Entry<String, String> e : delta.entrySet()) {
+            if (e.getValue() == null) {
+                state.remove(e.getKey());
+            } else {
+                state.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pixmob.r2droid.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Utterance listener, providing a barrier for each utterance.
+ * @author Pixmob
+ */
+public class UtteranceBarrier {
+    private final Map<String, CountDownLatch> barriers = new HashMap<String, CountDownLatch>(
+            2);
+    
+    /**
+     * Get a barrier which is released when an utterance is completed.
+     */
+    public synchronized CountDownLatch expect(String utteranceId) {
+        final CountDownLatch barrier = new CountDownLatch(1);
+        barriers.put(utteranceId, barrier);
+        return barrier;
+    }
+    
+    /**
+     * Release the barrier of an utterance.
+     */
+    public void onUtteranceCompleted(String utteranceId) {
+        final CountDownLatch barrier;
+        synchronized (this) {
+            barrier = barriers.remove(utteranceId);
+        }
+        if (barrier != null) {
+            barrier.countDown();
+        }
+    }
+    
+    /**
+     * Release every pending barrier.
+     */
+    public synchronized void releaseAll() {
+        for (final CountDownLatch barrier : barriers.values()) {
+            barrier.countDown();
+        }
+        barriers.clear();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.pixmob.r2droid.core.Command;
+import com.pixmob.r2droid.core.CommandCodec;
+import com.pixmob.r2droid.core.MessageDispatcher;
+import com.pixmob.r2droid.core.MessageWindow;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Allocation check for the push-to-execute path. Messages are handled
+ * as in the application: they are decoded with a dispatcher, the message
+ * window is encoded for persistence, and commands are parsed. The memory
+ * allocated by each step is measured over many messages, once the JIT
+ * compiler is warmed up, and it is compared with a budget.
+ * <p>
+ * Budgets are in bytes per message, as measured by this JVM: they catch
+ * regressions in the application code, and they are not the actual
+ * allocations on a device.
+ * </p>
+ * <p>
+ * This check is run by the <code>test</code> target of
+ * <code>core/build.xml</code>, which fails if a budget is exceeded. It can
+ * also be run from the project directory:
+ * </p>
+ *
+ * <pre>
+ * javac -d bin/tools src/com/pixmob/r2droid/core/*.java tools/*.java
+ * java -cp bin/tools AllocationCheck
+ * </pre>
+ * @author Pixmob
+ */
+public class AllocationCheck implements MessageDispatcher.Sink {
+    private static final int WARM_UP_MESSAGES = 20000;
+    private static final int MESSAGES = 100000;
+    /**
+     * Decoded command strings: about 90 bytes are allocated.
+     */
+    private static final long DISPATCH_BUDGET = 128;
+    /**
+     * Encoded window string: about 130 bytes are allocated.
+     */
+    private static final long WINDOW_BUDGET = 192;
+    /**
+     * Command objects for texts to speak: about 40 bytes are allocated.
+     */
+    private static final long PARSE_BUDGET = 64;
+    private static final List<String> COMMANDS = Arrays.asList("ring",
+        "vibrate", "say Hello world", "say:fr-FR Bonjour tout le monde",
+        "locate", "status");
+    private final ThreadMXBean threads = (ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+    private final String[] payloads;
+    private final String[] seqs = new String[WARM_UP_MESSAGES + MESSAGES];
+    private final MessageDispatcher dispatcher = new MessageDispatcher(
+            new MessageWindow());
+    private String lastCommand;
+    private int commandCount;
+    
+    public static void main(String[] args) {
+        System.exit(new AllocationCheck().run() ? 0 : 1);
+    }
+    
+    public AllocationCheck() {
+        payloads = new String[COMMANDS.size() + 1];
+        for (int i = 0; i < COMMANDS.size(); ++i) {
+            payloads[i] = CommandCodec.encode(Collections
+                    .singletonList(COMMANDS.get(i)));
+        }
+        // a compressed payload with every command
+        payloads[COMMANDS.size()] = CommandCodec.encode(COMMANDS);
+        for (int i = 0; i < seqs.length; ++i) {
+            seqs[i] = String.valueOf(i);
+        }
+    }
+    
+    public boolean run() {
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("Allocation measurement is unsupported");
+            return false;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        
+        int seq = 0;
+        for (int i = 0; i < WARM_UP_MESSAGES; ++i) {
+            handle(seq++);
+        }
+        final long dispatchBytes = measureDispatch(seq);
+        final long windowBytes = measureWindow();
+        final long parseBytes = measureParse();
+        
+        boolean ok = check("dispatch", dispatchBytes, DISPATCH_BUDGET);
+        ok &= check("window", windowBytes, WINDOW_BUDGET);
+        ok &= check("parse", parseBytes, PARSE_BUDGET);
+        System.out.println("messages=" + MESSAGES + " commands="
+                + commandCount);
+        return ok;
+    }
+    
+    private void handle(int seq) {
+        dispatcher.dispatch(seqs[seq], null, payloads[seq
+                % payloads.length], null, this);
+        dispatcher.getWindow().encode();
+        Command.parse(lastCommand);
+    }
+    
+    private long measureDispatch(int firstSeq) {
+        final long start = allocatedBytes();
+        for (int i = 0; i < MESSAGES; ++i) {
+            final int seq = firstSeq + i;
+            dispatcher.dispatch(seqs[seq], null, payloads[seq
+                    % payloads.length], null, this);
+        }
+        return (allocatedBytes() - start) / MESSAGES;
+    }
+    
+    private long measureWindow() {
+        final MessageWindow window = dispatcher.getWindow();
+        final long start = allocatedBytes();
+        for (int i = 0; i < MESSAGES; ++i) {
+            window.encode();
+        }
+        return (allocatedBytes() - start) / MESSAGES;
+    }
+    
+    private long measureParse() {
+        final long start = allocatedBytes();
+        for (int i = 0; i < MESSAGES; ++i) {
+            Command.parse(COMMANDS.get(i % COMMANDS.size()));
+        }
+        return (allocatedBytes() - start) / MESSAGES;
+    }
+    
+    private long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread()
+                .getId());
+    }
+    
+    private static boolean check(String path, long bytes, long budget) {
+        final boolean ok = bytes <= budget;
+        System.out.println(String.format("%-12s %d bytes/message "
+                + "(budget: %d bytes) %s", path, bytes, budget, ok ? "OK"
+                : "OVER BUDGET"));
+        return ok;
+    }
+    
+    @Override
+    public void onSync() {
+    }
+    
+    @Override
+    public void onCommand(String command) {
+        lastCommand = command;
+        ++commandCount;
+    }
+    
+    @Override
+    public void onError(String message, Exception cause) {
+        throw new IllegalStateException(message, cause);
+    }
+}
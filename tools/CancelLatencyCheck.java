@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.pixmob.r2droid.core.CancellationToken;
+import com.pixmob.r2droid.core.Outputs;
+import com.pixmob.r2droid.core.SpeechChunker;
+import com.pixmob.r2droid.core.UtteranceBarrier;
+
+/**
+ * Cancellation latency check for long-running commands. The ring, vibrate
+ * and say commands are run with the same {@link Outputs} methods as in the
+ * application, with simulated outputs: a 30 seconds ringtone, the vibrator,
+ * and a text-to-speech engine speaking a long text. Each command is
+ * cancelled from another thread, at a random time after it is started, and
+ * two latencies are measured from the cancellation:
+ * <ul>
+ * <li>silence: the output is stopped;</li>
+ * <li>return: the command thread is done with the command.</li>
+ * </ul>
+ * <p>
+ * Simulated outputs stop immediately: the latencies are those of the
+ * cancellation path of the application, not those of the device media
+ * player, vibrator or text-to-speech engine.
+ * </p>
+ * <p>
+ * This check is run by the <code>test</code> target of
+ * <code>core/build.xml</code>, which fails if a latency exceeds
+ * {@link #MAX_LATENCY}. It can also be run from the project directory:
+ * </p>
+ *
+ * <pre>
+ * javac -d bin/tools src/com/pixmob/r2droid/core/*.java tools/*.java
+ * java -cp bin/tools CancelLatencyCheck
+ * </pre>
+ * @author Pixmob
+ */
+public class CancelLatencyCheck {
+    /**
+     * Maximum latency in milliseconds, from the cancellation to the silence
+     * or to the end of the command.
+     */
+    private static final long MAX_LATENCY = 100;
+    private static final int RUNS = 40;
+    /**
+     * Commands are cancelled up to this delay after they are started, in
+     * milliseconds. A command may also be cancelled before its output is
+     * started.
+     */
+    private static final int MAX_CANCEL_DELAY = 200;
+    private static final long RINGTONE_DURATION = 30 * 1000;
+    private static final long VIBRATE_DURATION = 10 * 1000;
+    /**
+     * Simulated speech rate, in milliseconds per character.
+     */
+    private static final long SPEECH_RATE = 60;
+    private static final String TEXT = "This device is lost. "
+            + "Please call the number displayed on the screen, "
+            + "or bring this device to the nearest police station. "
+            + "A reward will be given to the person returning this device. "
+            + "Thank you for your help, and have a nice day.";
+    private final ScheduledExecutorService timer = Executors
+            .newSingleThreadScheduledExecutor();
+    private final Random random = new Random(42);
+    
+    public static void main(String[] args) throws InterruptedException {
+        final CancelLatencyCheck check = new CancelLatencyCheck();
+        try {
+            System.exit(check.run() ? 0 : 1);
+        } finally {
+            check.timer.shutdownNow();
+        }
+    }
+    
+    public boolean run() throws InterruptedException {
+        final List<String> chunks = SpeechChunker.split(TEXT, Locale.US);
+        final Command ring = new Command() {
+            @Override
+            public void execute(CancellationToken token, FakeOutput output)
+                    throws InterruptedException {
+                Outputs.play(output, 0, token);
+            }
+        };
+        final Command vibrate = new Command() {
+            @Override
+            public void execute(CancellationToken token, FakeOutput output)
+                    throws InterruptedException {
+                Outputs.play(output, VIBRATE_DURATION, token);
+            }
+        };
+        final Command say = new Command() {
+            @Override
+            public void execute(CancellationToken token, FakeOutput output)
+                    throws InterruptedException {
+                Outputs.speak(output, output, chunks, 2, token);
+            }
+        };
+        
+        boolean ok = check("ring", ring);
+        ok &= check("vibrate", vibrate);
+        ok &= check("say", say);
+        return ok;
+    }
+    
+    private boolean check(String name, final Command command)
+            throws InterruptedException {
+        final long[] silence = new long[RUNS];
+        final long[] done = new long[RUNS];
+        for (int i = 0; i < RUNS; ++i) {
+            final FakeOutput output = new FakeOutput();
+            final CancellationToken token = new CancellationToken();
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        command.execute(token, output);
+                    } catch (InterruptedException e) {
+                        // the command was cancelled
+                    }
+                }
+            };
+            thread.start();
+            Thread.sleep(random.nextInt(MAX_CANCEL_DELAY + 1));
+            
+            final long cancelTime = System.nanoTime();
+            token.cancel();
+            thread.join(RINGTONE_DURATION);
+            done[i] = System.nanoTime() - cancelTime;
+            // an output which was never started is silent
+            silence[i] = output.getStopTime() == 0 ? 0 : Math.max(0, output
+                    .getStopTime()
+                    - cancelTime);
+        }
+        
+        boolean ok = report(name + " silence", silence);
+        ok &= report(name + " return", done);
+        return ok;
+    }
+    
+    private static boolean report(String name, long[] latencies) {
+        Arrays.sort(latencies);
+        final double max = latencies[latencies.length - 1] / 1e6;
+        final boolean ok = max <= MAX_LATENCY;
+        System.out.println(String.format("%-16s p50=%.2fms max=%.2fms "
+                + "(bound: %dms) %s", name,
+            latencies[latencies.length / 2] / 1e6, max, MAX_LATENCY, ok ? "OK"
+                    : "TOO SLOW"));
+        return ok;
+    }
+    
+    /**
+     * Command using an output.
+     * @author Pixmob
+     */
+    private interface Command {
+        void execute(CancellationToken token, FakeOutput output)
+                throws InterruptedException;
+    }
+    
+    /**
+     * Simulated output: a media player, the vibrator or a text-to-speech
+     * engine. Media and utterances end with timers.
+     * @author Pixmob
+     */
+    private class FakeOutput extends UtteranceBarrier implements
+            Outputs.Output, Outputs.Speaker {
+        private ScheduledFuture<?> end;
+        private long speechEnd;
+        private long stopTime;
+        
+        @Override
+        public synchronized void start(final Runnable completion) {
+            end = timer.schedule(completion, RINGTONE_DURATION,
+                TimeUnit.MILLISECONDS);
+        }
+        
+        @Override
+        public synchronized void speak(String text, final String utteranceId) {
+            // utterances are spoken one after the other
+            speechEnd = Math.max(speechEnd, System.currentTimeMillis())
+                    + text.length() * SPEECH_RATE;
+            end = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onUtteranceCompleted(utteranceId);
+                }
+            }, speechEnd - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+        
+        @Override
+        public synchronized void stop() {
+            if (stopTime == 0) {
+                stopTime = System.nanoTime();
+            }
+            if (end != null) {
+                end.cancel(false);
+            }
+        }
+        
+        public synchronized long getStopTime() {
+            return stopTime;
+        }
+    }
+}
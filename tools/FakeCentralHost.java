@@ -0,0 +1,532 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import com.pixmob.r2droid.core.StateDelta;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the central host and the push sender. The fake host
+ * implements the API used by the application, the App Engine login
+ * redirect, and the long-poll endpoint used by the polling transport. Push
+ * messages are sent with <code>/push</code>.
+ * <p>
+ * Build and run from the project directory:
+ * </p>
+ *
+ * <pre>
+ * javac -d bin/tools src/com/pixmob/r2droid/core/*.java tools/*.java
+ * java -cp bin/tools FakeCentralHost [port]
+ * </pre>
+ * <p>
+ * A device build targets this host with the resources
+ * <code>central_url</code> and <code>poll_url</code>, and with the
+ * <code>polling</code> push transport. Push messages are then sent with:
+ * <code>/push?regid=&lt;id&gt;&amp;command=ring</code> (omit
+ * <code>regid</code> for sending to every device).
+ * </p>
+ * <p>
+ * The load test is run with {@link LoadTest}.
+ * </p>
+ * @author Pixmob
+ */
+public class FakeCentralHost {
+    private static final Pattern OBJECT_PATTERN = Pattern.compile("\\{([^{}]*)\\}");
+    private static final Pattern FIELD_PATTERN = Pattern
+            .compile("\"(\\w+)\":\"((?:[^\"\\\\]|\\\\.)*)\"");
+    private static final Pattern STATUS_FIELD_PATTERN = Pattern
+            .compile("\"(\\w+)\":(null|\\d+|\"((?:[^\"\\\\]|\\\\.)*)\")");
+    private final Map<String, Device> devices = new ConcurrentHashMap<String, Device>();
+    private final Map<String, ByteArrayOutputStream> uploads = new ConcurrentHashMap<String, ByteArrayOutputStream>();
+    private final Map<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+    private final AtomicLong nextSeq = new AtomicLong();
+    private final AtomicInteger resultCount = new AtomicInteger();
+    private HttpServer server;
+    
+    public static void main(String[] args) throws Exception {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        final FakeCentralHost host = new FakeCentralHost();
+        host.start(port);
+        System.out.println("Fake central host listening on port " + port);
+    }
+    
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 128);
+        // long-poll requests hold a thread each
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new Endpoint("root") {
+            @Override
+            void handle(HttpExchange ex, Map<String, String> params)
+                    throws IOException {
+                // the central host redirects to the login page
+                ex.getResponseHeaders().set("Location", "/_ah/login?continue=/");
+                send(ex, 302, null);
+            }
+        });
+        server.createContext("/_ah/login", new Endpoint("login") {
+            @Override
+            void handle(HttpExchange ex, Map<String, String> params)
+                    throws IOException {
+                final String cont = params.get("continue");
+                ex.getResponseHeaders().set("Location",
+                    cont != null ? cont : "/");
+                ex.getResponseHeaders().add("Set-Cookie",
+                    "ACSID=fake; Path=/");
+                ex.getResponseHeaders().add("Set-Cookie",
+                    "SACSID=fake; Path=/");
+                send(ex, 302, null);
+            }
+        });
+        server.createContext("/api/1/register", new Endpoint("register") {
+            @Override
+            void handle(HttpExchange ex, Map<String, String> params)
+                    throws IOException {
+                final String regId = params.get("regid");
+                if (regId == null) {
+                    send(ex, 400, null);
+                    return;
+                }
+                if (!devices.containsKey(regId)) {
+                    devices.put(regId, new Device());
+                }
+                send(ex, 200, null);
+            }
+        });
+        server.createContext("/api/1/unregister", new Endpoint("unregister") {
+            @Override
+            void handle(HttpExchange ex, Map<String, String> params)
+                    throws IOException {
+                final Device device = devices.remove(params.get("regid"));
+                send(ex, device != null ? 200 : 404, null);
+            }
+        });
+        server.createContext("/api/1/device", new Endpoint("device") {
+            @Override
+            void handle(HttpExchange ex, Map<String, String> params)
+                    throws IOException {
+                send(ex, devices.containsKey(params.get("regid")) ? 200 : 404,
+                    null);
+            }
+        });
+        server.createContext("/api/1/commands", new Endpoint("commands") {
+            @Override
+            void handle(HttpExchange ex, Map<String, String> params)
+                    throws IOException {
+                final Device device = devices.get(params.get("regid"));
+                if (device == null) {
+                    send(ex, 404, null);
+                    return;
+                }
+                final StringBuilder buf = new StringBuilder(
+                        "{\"commands\":[");
+                String cursor;
+                synchronized (device) {
+                    // acknowledged commands are removed
+                    final String ack = params.get("cursor");
+                    if (ack != null) {
+                        device.dropSyncCommands(Long.parseLong(ack));
+                    }
+                    // each command holds the cursor acknowledging it
+                    for (int i = 0; i < device.syncCommands.size(); ++i) {
+                        final SyncCommand cmd = device.syncCommands.get(i);
+                        if (i != 0) {
+                            buf.append(',');
+                        }
+                        buf.append("{\"seq\":");
+                        appendString(buf, String.valueOf(cmd.seq));
+                        buf.append(",\"cursor\":");
+                        appendString(buf, String
+                                .valueOf(device.syncCursor + i + 1));
+                        buf.append(",\"command\":");
+                        appendString(buf, cmd.command);
+                        buf.append('}');
+                    }
+                    cursor = String.valueOf(device.syncCursor
+                            + device.syncCommands.size());
+                }
+                buf.append("],\"cursor\":");
+                appendString(buf, cursor);
+                buf.append('}');
+                send(ex, 200, buf.toString());
+            }
+        });
+        server.createContext("/api/1/results", new Endpoint("results") {
+            @Override
+            void handle(HttpExchange ex, Map<String, String> params)
+                    throws IOException {
+                final byte[] body = readFully(ex.getRequestBody());
+                resultCount.addAndGet(body.length);
+                send(ex, 200, null);
+            }
+        });
+        server.createContext("/api/1/location", new Endpoint("location") {
+            @Override
+            void handle(HttpExchange ex, Map<String, String> params)
+                    throws IOException {
+                final String body = new String(readFully(ex.getRequestBody()),
+                        "UTF-8");
+                System.out.println("Location from " + params.get("regid")
+                        + ": " + body);
+                send(ex, 200, null);
+            }
+        });
+        server.createContext("/api/1/status", new Endpoint("status") {
+            @Override
+            void handle(HttpExchange ex, Map<String, String> params)
+                    throws IOException {
+                final Device device = devices.get(params.get("regid"));
+                if (device == null) {
+                    send(ex, 404, null);
+                    return;
+                }
+                final String body = new String(readFully(ex.getRequestBody()),
+                        "UTF-8");
+                final Map<String, String> delta = new HashMap<String, String>(
+                        8);
+                final Matcher fields = STATUS_FIELD_PATTERN.matcher(body);
+                while (fields.find()) {
+                    final String value = fields.group(3) != null ? fields
+                            .group(3) : "null".equals(fields.group(2)) ? null
+                            : fields.group(2);
+                    delta.put(fields.group(1), value);
+                }
+                final String version = delta.remove("v");
+                final String base = delta.remove("base");
+                synchronized (device) {
+                    if (base == null) {
+                        device.status.clear();
+                    } else if (!base.equals(device.statusVersion)) {
+                        // the base state is unknown: a full state is needed
+                        send(ex, 409, null);
+                        return;
+                    }
+                    StateDelta.apply(device.status, delta);
+                    device.statusVersion = version;
+                    System.out.println("Status from " + params.get("regid")
+                            + " (" + body.length() + " bytes): "
+                            + device.status);
+                }
+                send(ex, 200, null);
+            }
+        });
+        server.createContext("/api/1/upload", new Endpoint("upload") {
+            @Override
+            void handle(HttpExchange ex, Map<String, String> params)
+                    throws IOException {
+                final String id = params.get("id");
+                final byte[] chunk = readFully(ex.getRequestBody());
+                ByteArrayOutputStream data = uploads.get(id);
+                if (data == null) {
+                    data = new ByteArrayOutputStream();
+                    uploads.put(id, data);
+                }
+                synchronized (data) {
+                    // the client resumes from the offset in the reply
+                    if (Long.parseLong(params.get("offset")) != data.size()) {
+                        send(ex, 409, String.valueOf(data.size()));
+                        return;
+                    }
+                    data.write(chunk);
+                    if (data.size() == Long.parseLong(params.get("length"))) {
+                        final byte[] content = readFully(new GZIPInputStream(
+                                new ByteArrayInputStream(data.toByteArray())));
+                        System.out.println("Upload " + params.get("name")
+                                + " done: " + data.size() + " bytes, "
+                                + content.length + " bytes uncompressed");
+                    }
+                    send(ex, 200, String.valueOf(data.size()));
+                }
+            }
+        });
+        server.createContext("/api/1/poll", new Endpoint("poll") {
+            @Override
+            void handle(HttpExchange ex, Map<String, String> params)
+                    throws IOException {
+                final Device device = devices.get(params.get("regid"));
+                if (device == null) {
+                    send(ex, 404, null);
+                    return;
+                }
+                final long timeout = params.containsKey("timeout") ? Long
+                        .parseLong(params.get("timeout")) : 60;
+                String msg;
+                try {
+                    msg = device.messages.poll(timeout, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    msg = null;
+                }
+                if (msg == null) {
+                    send(ex, 204, null);
+                    return;
+                }
+                final List<String> batch = new ArrayList<String>(4);
+                batch.add(msg);
+                device.messages.drainTo(batch);
+                final StringBuilder buf = new StringBuilder("{\"messages\":[");
+                for (int i = 0; i < batch.size(); ++i) {
+                    if (i != 0) {
+                        buf.append(',');
+                    }
+                    buf.append(batch.get(i));
+                }
+                buf.append("]}");
+                send(ex, 200, buf.toString());
+            }
+        });
+        server.createContext("/push", new Endpoint("push") {
+            @Override
+            void handle(HttpExchange ex, Map<String, String> params)
+                    throws IOException {
+                final String regId = params.get("regid");
+                int sent = 0;
+                for (final Map.Entry<String, Device> e : devices.entrySet()) {
+                    if (regId == null || regId.equals(e.getKey())) {
+                        push(e.getValue(), params.get("type"), params
+                                .get("command"), params.get("c"));
+                        ++sent;
+                    }
+                }
+                send(ex, sent == 0 ? 404 : 200, "sent=" + sent);
+            }
+        });
+        server.start();
+    }
+    
+    public void stop() {
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+    
+    /**
+     * Queue a push message for a device.
+     * @return message sequence number
+     */
+    long push(Device device, String type, String command, String payload) {
+        if ("sync".equals(type) && command != null) {
+            // fetched commands have their own sequence number
+            final SyncCommand cmd = new SyncCommand(nextSeq.incrementAndGet(),
+                    command);
+            synchronized (device) {
+                device.syncCommands.add(cmd);
+            }
+            command = null;
+        }
+        final long seq = nextSeq.incrementAndGet();
+        final StringBuilder buf = new StringBuilder(64);
+        buf.append("{\"seq\":");
+        appendString(buf, String.valueOf(seq));
+        buf.append(",\"sent\":");
+        appendString(buf, String.valueOf(System.nanoTime()));
+        if (type != null) {
+            buf.append(",\"type\":");
+            appendString(buf, type);
+        }
+        if (command != null) {
+            buf.append(",\"command\":");
+            appendString(buf, command);
+        }
+        if (payload != null) {
+            buf.append(",\"c\":");
+            appendString(buf, payload);
+        }
+        buf.append('}');
+        device.messages.add(buf.toString());
+        return seq;
+    }
+    
+    /**
+     * Resend a message, as a push service may do.
+     */
+    void pushAgain(Device device, long seq, String payload) {
+        device.messages.add("{\"seq\":\"" + seq + "\",\"sent\":\""
+                + System.nanoTime() + "\",\"c\":\"" + payload + "\"}");
+    }
+    
+    Device getDevice(String regId) {
+        return devices.get(regId);
+    }
+    
+    Stats getStats(String endpoint) {
+        Stats s = stats.get(endpoint);
+        if (s == null) {
+            s = new Stats();
+            stats.put(endpoint, s);
+        }
+        return s;
+    }
+    
+    private static void appendString(StringBuilder buf, String str) {
+        buf.append('"');
+        for (int i = 0; i < str.length(); ++i) {
+            final char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf.append('\\').append(c);
+            } else if (c < 0x20) {
+                buf.append(String.format("\\u%04x", (int) c));
+            } else {
+                buf.append(c);
+            }
+        }
+        buf.append('"');
+    }
+    
+    /**
+     * Parse messages from a poll response.
+     */
+    static List<Map<String, String>> parseMessages(String body) {
+        final List<Map<String, String>> messages = new ArrayList<Map<String, String>>();
+        final Matcher objects = OBJECT_PATTERN.matcher(body);
+        while (objects.find()) {
+            final Map<String, String> msg = new HashMap<String, String>(8);
+            final Matcher fields = FIELD_PATTERN.matcher(objects.group(1));
+            while (fields.find()) {
+                msg.put(fields.group(1), fields.group(2).replaceAll(
+                    "\\\\(.)", "$1"));
+            }
+            messages.add(msg);
+        }
+        return messages;
+    }
+    
+    static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(1024);
+        final byte[] chunk = new byte[1024];
+        for (int n; (n = in.read(chunk)) != -1;) {
+            buf.write(chunk, 0, n);
+        }
+        in.close();
+        return buf.toByteArray();
+    }
+    
+    private static Map<String, String> parseQuery(URI uri) throws IOException {
+        final Map<String, String> params = new HashMap<String, String>(4);
+        final String query = uri.getRawQuery();
+        if (query == null) {
+            return params;
+        }
+        for (final String param : query.split("&")) {
+            final int i = param.indexOf('=');
+            if (i != -1) {
+                params.put(URLDecoder.decode(param.substring(0, i), "UTF-8"),
+                    URLDecoder.decode(param.substring(i + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+    
+    /**
+     * Endpoint handler, with statistics.
+     * @author Pixmob
+     */
+    private abstract class Endpoint implements HttpHandler {
+        private final String name;
+        
+        public Endpoint(final String name) {
+            this.name = name;
+        }
+        
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            final long start = System.nanoTime();
+            boolean success = false;
+            try {
+                handle(ex, parseQuery(ex.getRequestURI()));
+                success = true;
+            } catch (RuntimeException e) {
+                send(ex, 500, e.toString());
+            } finally {
+                ex.close();
+                getStats(name).add(System.nanoTime() - start, success);
+            }
+        }
+        
+        abstract void handle(HttpExchange ex, Map<String, String> params)
+                throws IOException;
+        
+        void send(HttpExchange ex, int statusCode, String body)
+                throws IOException {
+            if (body == null) {
+                ex.sendResponseHeaders(statusCode, -1);
+                return;
+            }
+            final byte[] data = body.getBytes("UTF-8");
+            ex.getResponseHeaders().set("Content-Type",
+                "application/json; charset=UTF-8");
+            ex.sendResponseHeaders(statusCode, data.length);
+            final OutputStream out = ex.getResponseBody();
+            out.write(data);
+            out.close();
+        }
+    }
+    
+    /**
+     * Device state.
+     * @author Pixmob
+     */
+    static class Device {
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+        final List<SyncCommand> syncCommands = new ArrayList<SyncCommand>();
+        final Map<String, String> status = new HashMap<String, String>(8);
+        String statusVersion;
+        long syncCursor;
+        
+        void dropSyncCommands(long cursor) {
+            while (syncCursor < cursor && !syncCommands.isEmpty()) {
+                syncCommands.remove(0);
+                ++syncCursor;
+            }
+        }
+    }
+    
+    /**
+     * Command fetched by a device.
+     * @author Pixmob
+     */
+    static class SyncCommand {
+        final long seq;
+        final String command;
+        
+        SyncCommand(final long seq, final String command) {
+            this.seq = seq;
+            this.command = command;
+        }
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.pixmob.r2droid.core.AccountRequests;
+import com.pixmob.r2droid.core.AccountRequests.Result;
+import com.pixmob.r2droid.core.CommandCodec;
+import com.pixmob.r2droid.core.CommandSync;
+import com.pixmob.r2droid.core.DeviceRegistration;
+import com.pixmob.r2droid.core.MessageDispatcher;
+import com.pixmob.r2droid.core.MessageWindow;
+import com.pixmob.r2droid.core.Urls;
+
+/**
+ * Load test with virtual devices, against a {@link FakeCentralHost} started
+ * in the same process.
+ * <p>
+ * Build and run from the project directory:
+ * </p>
+ *
+ * <pre>
+ * javac -d bin/tools src/com/pixmob/r2droid/core/*.java tools/*.java
+ * java -cp bin/tools LoadTest [port] [devices] [pushes]
+ * </pre>
+ * <p>
+ * Virtual devices do not run the Android components, but they run the same
+ * registration and sync code as DeviceRegistrationService. Each virtual
+ * device logs in with the App Engine login redirect for several accounts,
+ * and registers every account with {@link DeviceRegistration}. Push
+ * messages are received through the long-poll endpoint, and decoded with
+ * the same dispatcher as the application, including duplicate detection.
+ * Sync messages fetch pending commands with {@link CommandSync}. Devices
+ * are unregistered at the end. Throughput, latency percentiles and error
+ * rates are reported.
+ * </p>
+ * <p>
+ * Latencies are round trips to the fake host: they measure the HTTP stack
+ * and the device code, not the central host.
+ * </p>
+ * @author Pixmob
+ */
+public class LoadTest {
+    private static final int CLIENT_THREADS = 32;
+    private static final int POLL_TIMEOUT = 5;
+    /**
+     * One message out of this value is delivered twice.
+     */
+    private static final int DUPLICATE_RATE = 20;
+    /**
+     * One message out of this value is a sync message: its command is
+     * fetched by the device.
+     */
+    private static final int SYNC_RATE = 10;
+    private static final int ACCOUNTS_PER_DEVICE = 2;
+    private static final List<String> COMMANDS = Arrays.asList("ring",
+        "vibrate", "say Hello world", "say:fr-FR Bonjour tout le monde");
+    private final FakeCentralHost host;
+    private final String baseUrl;
+    private final int deviceCount;
+    private final int pushCount;
+    private final Stats loginStats = new Stats();
+    private final Stats registerStats = new Stats();
+    private final Stats unregisterStats = new Stats();
+    private final Stats deliveryStats = new Stats();
+    private final AtomicInteger commandCount = new AtomicInteger();
+    private final AtomicInteger dropCount = new AtomicInteger();
+    private final AtomicInteger pollErrorCount = new AtomicInteger();
+    private final Map<String, Map<String, String>> deviceCookies = new ConcurrentHashMap<String, Map<String, String>>();
+    private final ExecutorService accountExecutor = Executors
+            .newFixedThreadPool(CLIENT_THREADS);
+    private final DeviceRegistration.Host<String> registrationHost = new DeviceRegistration.Host<String>() {
+        @Override
+        public int get(String cookie, String url, String endpoint)
+                throws IOException {
+            final HttpURLConnection conn = open(url, cookie);
+            final int statusCode = conn.getResponseCode();
+            readBody(conn);
+            return statusCode;
+        }
+        
+        @Override
+        public boolean isConfirmed(String account, String regId) {
+            return false;
+        }
+        
+        @Override
+        public void onConfirmed(String account, String regId) {
+        }
+        
+        @Override
+        public void onOutOfDate(String account, String regId) {
+        }
+    };
+    private volatile boolean running = true;
+    
+    public LoadTest(final FakeCentralHost host, final String baseUrl,
+            final int deviceCount, final int pushCount) {
+        this.host = host;
+        this.baseUrl = baseUrl;
+        this.deviceCount = deviceCount;
+        this.pushCount = pushCount;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        final int deviceCount = args.length > 1 ? Integer.parseInt(args[1])
+                : 200;
+        final int pushCount = args.length > 2 ? Integer.parseInt(args[2])
+                : 5000;
+        final FakeCentralHost host = new FakeCentralHost();
+        host.start(port);
+        final LoadTest test = new LoadTest(host, "http://localhost:" + port,
+                deviceCount, pushCount);
+        try {
+            test.run();
+        } finally {
+            test.accountExecutor.shutdownNow();
+            host.stop();
+        }
+    }
+    
+    public void run() throws Exception {
+        // logins and registrations
+        final ExecutorService clients = Executors
+                .newFixedThreadPool(CLIENT_THREADS);
+        final List<String> regIds = Collections
+                .synchronizedList(new ArrayList<String>(deviceCount));
+        long start = System.nanoTime();
+        for (int i = 0; i < deviceCount; ++i) {
+            final String regId = "load:" + i;
+            clients.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Map<String, String> accountCookies = new HashMap<String, String>(
+                            ACCOUNTS_PER_DEVICE);
+                    for (int j = 0; j < ACCOUNTS_PER_DEVICE; ++j) {
+                        final long t = System.nanoTime();
+                        final String cookie = login();
+                        loginStats.add(System.nanoTime() - t, cookie != null);
+                        if (cookie != null) {
+                            accountCookies.put("load" + j + "@example.com",
+                                cookie);
+                        }
+                    }
+                    if (accountCookies.isEmpty()) {
+                        return;
+                    }
+                    final long t = System.nanoTime();
+                    final boolean registered;
+                    try {
+                        registered = isAnySuccess(newRegistration(
+                            accountCookies).register(
+                            new ArrayList<String>(accountCookies.keySet()),
+                            regId, "Load"));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    // the device is online if an account is registered
+                    registerStats.add(System.nanoTime() - t, registered);
+                    if (registered) {
+                        regIds.add(regId);
+                        deviceCookies.put(regId, accountCookies);
+                    }
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(10, TimeUnit.MINUTES);
+        final long registrationTime = System.nanoTime() - start;
+        System.out.println(loginStats.report("login", registrationTime));
+        System.out.println(registerStats.report("register", registrationTime));
+        
+        // push delivery
+        final List<Thread> pollers = new ArrayList<Thread>(regIds.size());
+        for (final String regId : regIds) {
+            final Thread t = new Thread(new Poller(regId, deviceCookies
+                    .get(regId).values().iterator().next()), regId);
+            t.start();
+            pollers.add(t);
+        }
+        start = System.nanoTime();
+        final List<String> payloads = new ArrayList<String>(COMMANDS
+                .size());
+        for (final String command : COMMANDS) {
+            payloads.add(CommandCodec.encode(Collections
+                    .singletonList(command)));
+        }
+        for (int i = 0; i < pushCount; ++i) {
+            final FakeCentralHost.Device device = host.getDevice(regIds.get(i
+                    % regIds.size()));
+            if (i % SYNC_RATE == 1) {
+                host.push(device, "sync", COMMANDS.get(i % COMMANDS.size()),
+                    null);
+                continue;
+            }
+            final String payload = payloads.get(i % payloads.size());
+            final long seq = host.push(device, null, null, payload);
+            if (i % DUPLICATE_RATE == 0) {
+                host.pushAgain(device, seq, payload);
+            }
+        }
+        final int expected = pushCount;
+        while (commandCount.get() < expected
+                && System.nanoTime() - start < TimeUnit.MINUTES
+                        .toNanos(5)) {
+            Thread.sleep(50);
+        }
+        final long elapsed = System.nanoTime() - start;
+        running = false;
+        for (final Thread t : pollers) {
+            t.join();
+        }
+        
+        System.out.println(deliveryStats.report("delivery", elapsed));
+        System.out.println(host.getStats("poll").report("poll", elapsed));
+        System.out.println(host.getStats("commands").report("commands",
+            elapsed));
+        System.out.println(String.format(
+            "pushes=%d commands=%d duplicates dropped=%d "
+                    + "poll errors=%d lost=%d", pushCount, commandCount
+                    .get(), dropCount.get(), pollErrorCount.get(),
+            expected - commandCount.get()));
+        
+        // unregistrations
+        final ExecutorService unregisterClients = Executors
+                .newFixedThreadPool(CLIENT_THREADS);
+        start = System.nanoTime();
+        for (final String regId : regIds) {
+            unregisterClients.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Map<String, String> accountCookies = deviceCookies
+                            .get(regId);
+                    final long t = System.nanoTime();
+                    final boolean unregistered;
+                    try {
+                        unregistered = isAnySuccess(newRegistration(
+                            accountCookies).unregister(
+                            new ArrayList<String>(accountCookies.keySet()),
+                            regId));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    unregisterStats.add(System.nanoTime() - t, unregistered);
+                }
+            });
+        }
+        unregisterClients.shutdown();
+        unregisterClients.awaitTermination(10, TimeUnit.MINUTES);
+        final long unregistrationTime = System.nanoTime() - start;
+        System.out.println(unregisterStats.report("unregister",
+            unregistrationTime));
+    }
+    
+    /**
+     * Create the registration of a virtual device: session cookies are the
+     * clients of its accounts.
+     */
+    private DeviceRegistration<String> newRegistration(
+            final Map<String, String> accountCookies) {
+        return new DeviceRegistration<String>(baseUrl,
+                new AccountRequests<String>(accountExecutor,
+                        new AccountRequests.Clients<String>() {
+                            @Override
+                            public String get(String account) {
+                                return accountCookies.get(account);
+                            }
+                        }), registrationHost);
+    }
+    
+    /**
+     * Check if a request succeeded for at least one account.
+     */
+    private static boolean isAnySuccess(Map<String, Result> results) {
+        for (final Result result : results.values()) {
+            if (result.error == null
+                    && result.statusCode == DeviceRegistration.HTTP_SC_OK) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Log in with the App Engine login redirect, as the application does.
+     * @return session cookie, or <code>null</code> if the login failed
+     */
+    private String login() {
+        try {
+            final HttpURLConnection conn = (HttpURLConnection) new URL(
+                    baseUrl + "/_ah/login?continue=/&auth=load")
+                    .openConnection();
+            conn.setInstanceFollowRedirects(false);
+            final int statusCode = conn.getResponseCode();
+            readBody(conn);
+            final String cookie = conn.getHeaderField("Set-Cookie");
+            if (statusCode != 302 || cookie == null) {
+                return null;
+            }
+            final int i = cookie.indexOf(';');
+            return i == -1 ? cookie : cookie.substring(0, i);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    private static HttpURLConnection open(String url, String cookie)
+            throws IOException {
+        final HttpURLConnection conn = (HttpURLConnection) new URL(url)
+                .openConnection();
+        conn.setRequestProperty("Cookie", cookie);
+        conn.setReadTimeout((POLL_TIMEOUT + 10) * 1000);
+        return conn;
+    }
+    
+    private static String readBody(HttpURLConnection conn)
+            throws IOException {
+        final InputStream in = conn.getResponseCode() < 400 ? conn
+                .getInputStream() : conn.getErrorStream();
+        return in == null ? "" : new String(FakeCentralHost.readFully(in),
+                "UTF-8");
+    }
+    
+    /**
+     * Virtual device, receiving messages with the long-poll endpoint.
+     * @author Pixmob
+     */
+    private class Poller implements Runnable, MessageDispatcher.Sink,
+            CommandSync.Sink {
+        private final String regId;
+        private final String cookie;
+        private final MessageDispatcher dispatcher = new MessageDispatcher(
+                new MessageWindow());
+        private final CommandSync sync = new CommandSync(this, null);
+        
+        public Poller(final String regId, final String cookie) {
+            this.regId = regId;
+            this.cookie = cookie;
+        }
+        
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    final HttpURLConnection conn = open(baseUrl
+                            + "/api/1/poll?regid=" + regId + "&timeout="
+                            + POLL_TIMEOUT, cookie);
+                    final int statusCode = conn.getResponseCode();
+                    final String body = readBody(conn);
+                    if (statusCode == 200) {
+                        final long now = System.nanoTime();
+                        for (final Map<String, String> msg : FakeCentralHost
+                                .parseMessages(body)) {
+                            deliveryStats.add(now
+                                    - Long.parseLong(msg.get("sent")), true);
+                            if (!dispatcher.dispatch(msg.get("seq"), msg
+                                    .get("type"), msg.get("c"), msg
+                                    .get("command"), this)) {
+                                dropCount.incrementAndGet();
+                            }
+                        }
+                    } else if (statusCode != 204) {
+                        pollErrorCount.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    pollErrorCount.incrementAndGet();
+                }
+            }
+        }
+        
+        @Override
+        public void onSync() {
+            // pending commands are fetched, as DeviceRegistrationService does
+            try {
+                final HttpURLConnection conn = open(sync.getUrl(baseUrl
+                        + "/api/1/commands?regid=" + Urls.encode(regId)),
+                    cookie);
+                final int statusCode = conn.getResponseCode();
+                final String body = readBody(conn);
+                if (statusCode != 200) {
+                    pollErrorCount.incrementAndGet();
+                    return;
+                }
+                for (final Map<String, String> cmd : FakeCentralHost
+                        .parseMessages(body)) {
+                    sync.onCommand(cmd.get("seq"), cmd.get("cursor"), cmd
+                            .get("command"));
+                }
+            } catch (IOException e) {
+                pollErrorCount.incrementAndGet();
+            }
+        }
+        
+        @Override
+        public void onCommand(String seq, String command) {
+            if (!dispatcher.dispatch(seq, null, null, command, this)) {
+                dropCount.incrementAndGet();
+            }
+        }
+        
+        @Override
+        public void onCursor(String cursor) {
+            // the cursor is kept by the sync, for the next request
+        }
+        
+        @Override
+        public void onCommand(String command) {
+            commandCount.incrementAndGet();
+        }
+        
+        @Override
+        public void onError(String message, Exception cause) {
+            pollErrorCount.incrementAndGet();
+        }
+    }
+}
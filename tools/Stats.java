@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2011 Alexandre Roman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Latency samples and error count.
+ * @author Pixmob
+ */
+class Stats {
+    private final List<Long> samples = new ArrayList<Long>(1024);
+    private int errorCount;
+    
+    public synchronized void add(long latencyNanos, boolean success) {
+        samples.add(latencyNanos);
+        if (!success) {
+            ++errorCount;
+        }
+    }
+    
+    public synchronized String report(String name, long elapsedNanos) {
+        final int count = samples.size();
+        if (count == 0) {
+            return String.format("%-12s no requests", name);
+        }
+        final Long[] sorted = samples.toArray(new Long[count]);
+        Arrays.sort(sorted);
+        return String.format(
+            "%-12s count=%d rate=%.0f/s p50=%.1fms p95=%.1fms "
+                    + "p99=%.1fms max=%.1fms errors=%.2f%%", name, count,
+            count / (elapsedNanos / 1e9), percentile(sorted, 50),
+            percentile(sorted, 95), percentile(sorted, 99),
+            sorted[count - 1] / 1e6, 100.0 * errorCount / count);
+    }
+    
+    private static double percentile(Long[] sorted, int p) {
+        final int i = Math.max(0, (sorted.length * p + 99) / 100 - 1);
+        return sorted[Math.min(i, sorted.length - 1)] / 1e6;
+    }
+}